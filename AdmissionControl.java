@@ -0,0 +1,93 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Decides at accept time whether a new connection may start logging in, so a reconnect storm
+// can't tie up the server with half-finished handshakes. At most maxHandshakes connections log in
+// at once, and each source address gets a token bucket of logins per second. A connection that is
+// turned away is told how long to wait before retrying rather than being queued.
+public class AdmissionControl {
+    // Random extra seconds added to a retry hint so rejected clients don't all return together
+    private static final int RETRY_JITTER_SECONDS = 3;
+
+    // Once this many addresses are tracked, buckets idle long enough to be full again are dropped
+    private static final int PURGE_THRESHOLD = 10_000;
+
+    private final Semaphore handshakes;
+    private final double ratePerNano;
+    private final double burst;
+    private final long refillNanos;
+
+    private final ConcurrentHashMap<InetAddress, Bucket> buckets = new ConcurrentHashMap<>();
+
+    // ratePerSecond of 0 turns the per-address limit off
+    public AdmissionControl(int maxHandshakes, int ratePerSecond, int burst) {
+        this.handshakes = new Semaphore(Math.max(1, maxHandshakes));
+        this.ratePerNano = ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.refillNanos = ratePerSecond > 0 ? (long) (this.burst / ratePerNano) : 0;
+    }
+
+    // 0 if the connection may log in, in which case it holds a handshake slot until release();
+    // otherwise the seconds it should wait before trying again
+    public int admit(InetAddress address) {
+        if (ratePerNano > 0) {
+            double waitNanos = take(address, System.nanoTime());
+            if (waitNanos > 0) {
+                return retryAfter((int) Math.ceil(waitNanos / TimeUnit.SECONDS.toNanos(1)));
+            }
+        }
+
+        if (!handshakes.tryAcquire()) {
+            return retryAfter(1);
+        }
+        return 0;
+    }
+
+    // Give back the slot of an admitted connection once its login has finished or failed
+    public void release() {
+        handshakes.release();
+    }
+
+    // A retry hint of at least the given seconds, with jitter
+    public int retryAfter(int seconds) {
+        return seconds + ThreadLocalRandom.current().nextInt(RETRY_JITTER_SECONDS + 1);
+    }
+
+    // Take a token from the address's bucket; returns 0, or how long until a token is available
+    private double take(InetAddress address, long now) {
+        if (buckets.size() > PURGE_THRESHOLD) {
+            buckets.values().removeIf(bucket -> now - bucket.updated > refillNanos);
+        }
+
+        double[] waitNanos = new double[1];
+        buckets.compute(address, (key, bucket) -> {
+            if (bucket == null) {
+                bucket = new Bucket(burst, now);
+            }
+
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * ratePerNano);
+            bucket.updated = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+            } else {
+                waitNanos[0] = (1 - bucket.tokens) / ratePerNano;
+            }
+            return bucket;
+        });
+        return waitNanos[0];
+    }
+
+    // Logins left to one address; only touched inside ConcurrentHashMap.compute
+    private static class Bucket {
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+}
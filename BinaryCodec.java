@@ -0,0 +1,495 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Length-prefixed binary protocol, chosen by a client that opens the connection with MAGIC instead
+// of a login line. Every frame is a varint length followed by an opcode byte and its payload.
+// Strings are a varint byte count followed by UTF-8, and rooms are referred to by small varint ids
+// assigned by the server, so neither side has to split or match text to read a frame. Users are
+// referred to by name: frames are encoded once for all their recipients, so an id would have to be
+// global, and a name is needed alongside it anyway for users the client has not seen yet.
+public class BinaryCodec implements WireCodec {
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    // Sent by the client before its first frame; a text client never starts with a zero byte. The
+    // last byte is the protocol version.
+    public static final byte[] MAGIC = { 0, 'O', 'C', 'B', 2 };
+
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    // Longest frame the server accepts from a client
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    // Client to server
+    public static final int LOGIN = 0x01; // username, password
+    public static final int REGISTER = 0x02; // username, password
+    public static final int ANONYMOUS = 0x03;
+    public static final int RESUME = 0x04; // resume token, id of the last chat message seen (0 for none)
+    public static final int MESSAGE = 0x10; // text, always sent as chat even if it starts with '/'
+    public static final int COMMAND = 0x11; // a command line typed by the user, e.g. "/help"
+    public static final int JOIN = 0x12; // room id, access code
+    public static final int CREATE = 0x13; // room name, access code
+    public static final int ROOMS = 0x14;
+    public static final int USERS = 0x15; // optional page number
+    public static final int EXIT = 0x16;
+    public static final int OLDER = 0x17; // history cursor, page size
+
+    // Server to client
+    public static final int LOGIN_RESULT = 0x80; // LoginResult ordinal, then username on success, or seconds for RETRY_AFTER
+    public static final int NOTICE = 0x81; // text
+    public static final int CHAT = 0x82; // room id, sender name (empty for the server), text, message id
+    public static final int PRESENCE = 0x83; // Presence ordinal, room id, presence version, username
+    public static final int JOINED_ROOM = 0x84; // room id, room name
+    public static final int ROOM_LIST = 0x85; // count, then room id, name, locked flag per room
+    public static final int USER_LIST = 0x86; // room id, presence version, page, pages, count, then name, online flag per user
+    public static final int HISTORY = 0x87; // room id, count, then one formatted line per message, then history cursor
+    public static final int SESSION = 0x88; // resume token, seconds it stays valid after a disconnect
+    public static final int OLDER_HISTORY = 0x89; // room id, history cursor, count, then one formatted line per message
+    public static final int GOING_AWAY = 0x8A; // seconds to wait before reconnecting; the connection closes after it
+
+    // Ids for rooms, assigned on first use and stable for the life of the server; there are only as
+    // many as there are rooms
+    static final Interner ROOM_IDS = new Interner();
+
+    private BinaryCodec() {
+    }
+
+    @Override
+    public byte[] loginResult(LoginResult result, String username, boolean anonymous) {
+        FrameBuilder frame = new FrameBuilder(LOGIN_RESULT).writeByte(result.ordinal());
+        if (username != null) {
+            frame.writeString(username);
+        }
+        return frame.toByteArray();
+    }
+
+    @Override
+    public byte[] retryAfter(int seconds) {
+        return new FrameBuilder(LOGIN_RESULT)
+                .writeByte(LoginResult.RETRY_AFTER.ordinal())
+                .writeVarint(seconds)
+                .toByteArray();
+    }
+
+    @Override
+    public byte[] goingAway(int reconnectAfterSeconds) {
+        return new FrameBuilder(GOING_AWAY).writeVarint(reconnectAfterSeconds).toByteArray();
+    }
+
+    @Override
+    public byte[] session(String token, int graceSeconds) {
+        return new FrameBuilder(SESSION).writeString(token).writeVarint(graceSeconds).toByteArray();
+    }
+
+    @Override
+    public byte[] notice(String text) {
+        return new FrameBuilder(NOTICE).writeString(text).toByteArray();
+    }
+
+    @Override
+    public byte[] notices(List<String> lines) {
+        // Frames carry their own length, so several can simply be sent back to back
+        FrameBuilder frames = new FrameBuilder();
+        for (String line : lines) {
+            frames.append(notice(line));
+        }
+        return frames.toByteArray();
+    }
+
+    @Override
+    public byte[] chat(Message message) {
+        return new FrameBuilder(CHAT)
+                .writeVarint(ROOM_IDS.idOf(message.roomId))
+                .writeString(message.kind == Message.Kind.CHAT ? message.sender : "")
+                .writeString(message.body)
+                .writeVarlong(message.id)
+                .toByteArray();
+    }
+
+    @Override
+    public byte[] presence(Presence event, String roomId, long version, String username) {
+        return new FrameBuilder(PRESENCE)
+                .writeByte(event.ordinal())
+                .writeVarint(ROOM_IDS.idOf(roomId))
+                .writeVarlong(version)
+                .writeString(username)
+                .toByteArray();
+    }
+
+    @Override
+    public byte[] joinedRoom(Room room) {
+        return new FrameBuilder(JOINED_ROOM)
+                .writeVarint(ROOM_IDS.idOf(room.getId()))
+                .writeString(room.getName())
+                .toByteArray();
+    }
+
+    @Override
+    public byte[] roomList(List<Room> rooms) {
+        FrameBuilder frame = new FrameBuilder(ROOM_LIST).writeVarint(rooms.size());
+        for (Room room : rooms) {
+            frame.writeVarint(ROOM_IDS.idOf(room.getId()))
+                    .writeString(room.getName())
+                    .writeByte("public".equals(room.getAccessCode()) ? 0 : 1);
+        }
+        return frame.toByteArray();
+    }
+
+    @Override
+    public byte[] userList(String roomId, long version, int page, int pages, List<String> online,
+            List<String> offline) {
+        FrameBuilder frame = new FrameBuilder(USER_LIST)
+                .writeVarint(ROOM_IDS.idOf(roomId))
+                .writeVarlong(version)
+                .writeVarint(page)
+                .writeVarint(pages)
+                .writeVarint(online.size() + offline.size());
+        for (String user : online) {
+            frame.writeString(user).writeByte(1);
+        }
+        for (String user : offline) {
+            frame.writeString(user).writeByte(0);
+        }
+        return frame.toByteArray();
+    }
+
+    @Override
+    public byte[] history(String roomId, HistoryPage page) {
+        FrameBuilder frame = new FrameBuilder(HISTORY)
+                .writeVarint(ROOM_IDS.idOf(roomId))
+                .writeVarint(page.messages.size());
+        for (Message message : page.messages) {
+            frame.writeString(message.toHistoryLine());
+        }
+
+        // Last, so older clients can ignore it
+        return frame.writeVarlong(page.cursor).toByteArray();
+    }
+
+    @Override
+    public byte[] olderHistory(String roomId, HistoryPage page) {
+        FrameBuilder frame = new FrameBuilder(OLDER_HISTORY)
+                .writeVarint(ROOM_IDS.idOf(roomId))
+                .writeVarlong(page.cursor)
+                .writeVarint(page.messages.size());
+        for (Message message : page.messages) {
+            frame.writeString(message.toHistoryLine());
+        }
+        return frame.toByteArray();
+    }
+
+    // Frames sent by the client
+
+    public static byte[] login(int opcode, String username, String password) {
+        FrameBuilder frame = new FrameBuilder(opcode);
+        if (opcode != ANONYMOUS) {
+            frame.writeString(username).writeString(password);
+        }
+        return frame.toByteArray();
+    }
+
+    // Resume a session after a dropped connection instead of logging in again
+    public static byte[] resume(String token, long lastMessageId) {
+        return new FrameBuilder(RESUME).writeString(token).writeVarlong(lastMessageId).toByteArray();
+    }
+
+    public static byte[] message(String text) {
+        return new FrameBuilder(MESSAGE).writeString(text).toByteArray();
+    }
+
+    public static byte[] command(String line) {
+        return new FrameBuilder(COMMAND).writeString(line).toByteArray();
+    }
+
+    public static byte[] join(int roomId, String accessCode) {
+        return new FrameBuilder(JOIN).writeVarint(roomId).writeString(accessCode).toByteArray();
+    }
+
+    public static byte[] create(String roomName, String accessCode) {
+        return new FrameBuilder(CREATE).writeString(roomName).writeString(accessCode).toByteArray();
+    }
+
+    // One page of the current room's user list, counting from 0
+    public static byte[] users(int page) {
+        return new FrameBuilder(USERS).writeVarint(page).toByteArray();
+    }
+
+    // Up to pageSize messages of the current room older than the given history cursor
+    public static byte[] older(long cursor, int pageSize) {
+        return new FrameBuilder(OLDER).writeVarlong(cursor).writeVarint(pageSize).toByteArray();
+    }
+
+    // A frame with no payload, such as ROOMS, USERS or EXIT
+    public static byte[] request(int opcode) {
+        return new FrameBuilder(opcode).toByteArray();
+    }
+
+    // Read the rest of MAGIC after its first byte; false if the client sent something else
+    public static boolean readMagic(InputStream in) throws IOException {
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (in.read() != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Read one frame from a blocking stream; null if the stream ends cleanly between frames
+    public static Frame readFrame(InputStream in, int maxLength) throws IOException {
+        int length = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed inside a frame");
+            }
+            if (shift > 28) {
+                throw new ProtocolException("Malformed frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        if (length < 1 || length > maxLength) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(data, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            read += count;
+        }
+        return new Frame(data);
+    }
+
+    // A decoded frame: the opcode plus a cursor over its payload
+    public static class Frame {
+        public final int opcode;
+        private final byte[] data;
+        private int position = 1;
+
+        Frame(byte[] data) {
+            this.data = data;
+            this.opcode = data[0] & 0xFF;
+        }
+
+        // Whether anything is left to read; lets optional trailing fields be skipped by older peers
+        public boolean hasRemaining() {
+            return position < data.length;
+        }
+
+        public int readByte() throws ProtocolException {
+            if (position >= data.length) {
+                throw new ProtocolException("Truncated frame");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        public int readVarint() throws ProtocolException {
+            int value = 0;
+            for (int shift = 0; shift <= 28; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Malformed varint");
+        }
+
+        public long readVarlong() throws ProtocolException {
+            long value = 0;
+            for (int shift = 0; shift <= 63; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new ProtocolException("Malformed varint");
+        }
+
+        public String readString() throws ProtocolException {
+            int length = readVarint();
+            if (length < 0 || length > data.length - position) {
+                throw new ProtocolException("Truncated frame");
+            }
+            String value = new String(data, position, length, CHARSET);
+            position += length;
+            return value;
+        }
+    }
+
+    // Splits a non-blocking byte stream into frames, keeping a partial frame between reads
+    public static class FrameDecoder {
+        private final int maxLength;
+        private int length;
+        private int shift;
+        private byte[] data;
+        private int filled;
+
+        public FrameDecoder(int maxLength) {
+            this.maxLength = maxLength;
+        }
+
+        // The next complete frame from the buffer, or null once the buffer is used up
+        public Frame next(ByteBuffer buffer) throws ProtocolException {
+            while (data == null) {
+                if (!buffer.hasRemaining()) {
+                    return null;
+                }
+                if (shift > 28) {
+                    throw new ProtocolException("Malformed frame length");
+                }
+
+                int b = buffer.get() & 0xFF;
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0) {
+                    if (length < 1 || length > maxLength) {
+                        throw new ProtocolException("Invalid frame length " + length);
+                    }
+                    data = new byte[length];
+                    filled = 0;
+                }
+            }
+
+            int count = Math.min(buffer.remaining(), data.length - filled);
+            buffer.get(data, filled, count);
+            filled += count;
+            if (filled < data.length) {
+                return null;
+            }
+
+            Frame frame = new Frame(data);
+            data = null;
+            length = 0;
+            shift = 0;
+            return frame;
+        }
+    }
+
+    // Builds frames: payload first, with the length prefix added by toByteArray
+    static class FrameBuilder {
+        private byte[] buffer = new byte[64];
+        private int size;
+        private final boolean prefixed;
+
+        // Concatenates finished frames without adding a prefix of its own
+        FrameBuilder() {
+            this.prefixed = false;
+        }
+
+        FrameBuilder(int opcode) {
+            this.prefixed = true;
+            writeByte(opcode);
+        }
+
+        FrameBuilder writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+            return this;
+        }
+
+        FrameBuilder writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+            return this;
+        }
+
+        FrameBuilder writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+            return this;
+        }
+
+        FrameBuilder writeString(String value) {
+            byte[] bytes = value.getBytes(CHARSET);
+            writeVarint(bytes.length);
+            return append(bytes);
+        }
+
+        FrameBuilder append(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            if (!prefixed) {
+                return Arrays.copyOf(buffer, size);
+            }
+
+            int prefixSize = 1;
+            for (int value = size; (value & ~0x7F) != 0; value >>>= 7) {
+                prefixSize++;
+            }
+
+            byte[] frame = new byte[prefixSize + size];
+            int position = 0;
+            int value = size;
+            while ((value & ~0x7F) != 0) {
+                frame[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            frame[position++] = (byte) value;
+            System.arraycopy(buffer, 0, frame, position, size);
+            return frame;
+        }
+    }
+
+    // Hands out small ids for strings, starting at 1
+    static class Interner {
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Integer, String> keys = new ConcurrentHashMap<>();
+        private final AtomicInteger next = new AtomicInteger(1);
+
+        int idOf(String key) {
+            Integer id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            return ids.computeIfAbsent(key, k -> {
+                int assigned = next.getAndIncrement();
+                keys.put(assigned, k);
+                return assigned;
+            });
+        }
+
+        // The string an id was assigned to, or null if it was never handed out
+        String keyOf(int id) {
+            return keys.get(id);
+        }
+    }
+}
@@ -7,6 +7,11 @@ import java.net.Socket;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClientUI extends JFrame {
     private JTextField messageField;
@@ -22,6 +27,45 @@ public class ClientUI extends JFrame {
     private Socket client;
     private PrintWriter out;
     private BufferedReader in;
+
+    // Binary protocol, chosen with --binary or -Dopenchat.protocol=binary
+    private static boolean binaryProtocol;
+    private volatile OutputStream binaryOut;
+    private InputStream binaryIn;
+    private final Object sendLock = new Object();
+    private final Map<String, Integer> roomIds = new ConcurrentHashMap<>();
+
+    // User list of the current room and the presence version it reflects; listener thread only
+    private final Map<String, Boolean> roomMembers = new LinkedHashMap<>();
+    private int userListRoomId;
+    private long userListVersion;
+    private boolean userListRequested;
+
+    // Where we are connected, and what we need to get back in if the connection drops: the session
+    // to resume (binary protocol only), else the login to repeat. Listener thread only, apart from
+    // what is set at login.
+    private String serverAddress;
+    private int serverPort;
+    private String loginType;
+    private String loginUsername;
+    private String loginPassword;
+    private String resumeToken;
+    private int resumeGraceSeconds;
+    private long lastMessageId;
+
+    // Seconds the server asked us to wait before reconnecting when it shut down, or 0, and how long
+    // we keep trying to log in again after that
+    private int reconnectAfterSeconds;
+    private static final long RECONNECT_WINDOW_MILLIS = 120_000;
+
+    // Scrolling back through the current room: the cursor for the next older page (binary protocol;
+    // text clients let the server remember it), whether there is one, and whether it is on its way.
+    // UI thread only.
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private JScrollPane chatScrollPane;
+    private long historyCursor;
+    private boolean hasOlderHistory;
+    private boolean loadingOlderHistory;
     private JPanel headerPanel;
     private final Color PRIMARY_COLOR = new Color(70, 130, 180); // Steel blue
     private final Font MAIN_FONT = new Font("Segoe UI", Font.PLAIN, 14);
@@ -217,23 +261,40 @@ public class ClientUI extends JFrame {
         }
     }
 
+    // Reconnect after the delay the server asked for, without blocking the UI
+    private void retryLogin(String serverAddress, int port, String username, String password, String loginType,
+            int seconds) {
+        Timer timer = new Timer(seconds * 1000,
+                e -> connectToServer(serverAddress, port, username, password, loginType));
+        timer.setRepeats(false);
+        timer.start();
+    }
+
     private void connectToServer(String serverAddress, int port, String username, String password, String loginType) {
         try {
-            client = new Socket(serverAddress, port);
-            out = new PrintWriter(client.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            this.serverAddress = serverAddress;
+            this.serverPort = port;
+            this.loginType = loginType;
+            this.loginUsername = username;
+            this.loginPassword = password;
+            LoginAttempt attempt = new LoginAttempt(serverAddress, port, username, password, loginType);
+            String response = attempt.response;
+            String assignedName = attempt.assignedName;
+            int retryAfter = attempt.retryAfter;
+            if (response.endsWith("_SUCCESS")) {
+                useConnection(attempt);
+            }
 
-            // Send login type first
-            out.println(loginType);
+            // Server is busy with other logins; try again when it asks us to
+            if (response.equals("RETRY_AFTER")) {
+                retryLogin(serverAddress, port, username, password, loginType, retryAfter);
+                return;
+            }
 
             // For anonymous login, server will generate username
             if (loginType.equals("ANONYMOUS")) {
-                // Receive login response
-                String response = in.readLine();
-
                 if (response.equals("LOGIN_SUCCESS")) {
-                    // For anonymous users, server sends the generated username
-                    this.username = in.readLine();
+                    this.username = assignedName;
                     setupUI();
                     startMessageListener();
                 } else {
@@ -244,11 +305,6 @@ public class ClientUI extends JFrame {
             }
             // For regular login
             else if (loginType.equals("LOGIN")) {
-                out.println(username);
-                out.println(password);
-
-                String response = in.readLine();
-
                 if (response.equals("LOGIN_SUCCESS")) {
                     this.username = username;
                     setupUI();
@@ -265,11 +321,6 @@ public class ClientUI extends JFrame {
             }
             // For registration
             else if (loginType.equals("REGISTER")) {
-                out.println(username);
-                out.println(password);
-
-                String response = in.readLine();
-
                 if (response.equals("REGISTER_SUCCESS")) {
                     this.username = username;
                     setupUI();
@@ -288,6 +339,85 @@ public class ClientUI extends JFrame {
         }
     }
 
+    // One login handshake on a new connection; the connection is only used once it succeeded
+    private class LoginAttempt {
+        final Socket socket;
+        PrintWriter out;
+        BufferedReader in;
+        OutputStream binaryOut;
+        InputStream binaryIn;
+        String response;
+        String assignedName;
+        int retryAfter;
+
+        LoginAttempt(String serverAddress, int port, String username, String password, String loginType)
+                throws IOException {
+            socket = new Socket(serverAddress, port);
+            try {
+                if (binaryProtocol) {
+                    binaryOut = new BufferedOutputStream(socket.getOutputStream());
+                    binaryIn = new BufferedInputStream(socket.getInputStream());
+
+                    // Preamble, then the login frame
+                    int opcode = loginType.equals("LOGIN") ? BinaryCodec.LOGIN
+                            : loginType.equals("REGISTER") ? BinaryCodec.REGISTER : BinaryCodec.ANONYMOUS;
+                    binaryOut.write(BinaryCodec.MAGIC);
+                    binaryOut.write(BinaryCodec.login(opcode, username, password));
+                    binaryOut.flush();
+
+                    BinaryCodec.Frame reply = BinaryCodec.readFrame(binaryIn, Integer.MAX_VALUE);
+                    if (reply == null || reply.opcode != BinaryCodec.LOGIN_RESULT) {
+                        throw new EOFException("No login reply");
+                    }
+                    response = WireCodec.LoginResult.values()[reply.readByte()].name();
+                    if (response.endsWith("_SUCCESS")) {
+                        assignedName = reply.readString();
+                    } else if (response.equals("RETRY_AFTER")) {
+                        retryAfter = reply.readVarint();
+                    }
+                } else {
+                    out = new PrintWriter(socket.getOutputStream(), true);
+                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+                    // Send login type first, then credentials for a regular login or registration
+                    out.println(loginType);
+                    if (!loginType.equals("ANONYMOUS")) {
+                        out.println(username);
+                        out.println(password);
+                    }
+
+                    response = in.readLine();
+                    if (response == null) {
+                        throw new EOFException("No login reply");
+                    }
+
+                    // For anonymous users, server sends the generated username on the next line
+                    if (loginType.equals("ANONYMOUS") && response.equals("LOGIN_SUCCESS")) {
+                        assignedName = in.readLine();
+                    } else if (response.equals("RETRY_AFTER")) {
+                        String seconds = in.readLine();
+                        retryAfter = seconds != null ? Integer.parseInt(seconds.trim()) : 1;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+            if (!response.endsWith("_SUCCESS")) {
+                socket.close();
+            }
+        }
+    }
+
+    // Switch to the connection of a successful login
+    private void useConnection(LoginAttempt attempt) {
+        client = attempt.socket;
+        in = attempt.in;
+        out = attempt.out;
+        binaryIn = attempt.binaryIn;
+        binaryOut = attempt.binaryOut;
+    }
+
     private void setupUI() {
         String userStatus = isAnonymous ? " (Anonymous)" : "";
         setTitle("OpenChat - Connected as " + username + userStatus);
@@ -337,9 +467,17 @@ public class ClientUI extends JFrame {
         chatArea.setBackground(Color.WHITE);
         chatArea.setBorder(new EmptyBorder(10, 10, 10, 10));
 
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
+        chatScrollPane = new JScrollPane(chatArea);
         chatScrollPane.setBorder(BorderFactory.createLineBorder(new Color(220, 220, 220)));
 
+        // Fetch older messages when the chat is scrolled to the top (or doesn't fill the view yet)
+        chatScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+            if (bar.getValue() == bar.getMinimum() && !e.getValueIsAdjusting()) {
+                requestOlderHistory();
+            }
+        });
+
         // Message input panel
         JPanel messagePanel = new JPanel(new BorderLayout(10, 0));
         messagePanel.setBackground(new Color(240, 240, 240));
@@ -435,7 +573,7 @@ public class ClientUI extends JFrame {
                 if (isLocked) {
                     showJoinRoomWithCodeDialog(roomName);
                 } else {
-                    out.println("/join " + roomName);
+                    sendJoin(roomName, "");
                 }
             }
         });
@@ -448,8 +586,8 @@ public class ClientUI extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                if (out != null) {
-                    out.println("/exit");
+                if (out != null || binaryOut != null) {
+                    sendExit();
                 }
                 System.exit(0);
             }
@@ -503,7 +641,7 @@ public class ClientUI extends JFrame {
             String accessCode = publicRoomCheckbox.isSelected() ? "public" : new String(accessCodeField.getPassword());
 
             // Send create room command
-            out.println("/create " + roomName + " " + accessCode);
+            sendCreate(roomName, accessCode);
         }
     }
 
@@ -521,111 +659,544 @@ public class ClientUI extends JFrame {
 
         if (result == JOptionPane.OK_OPTION) {
             String accessCode = new String(accessCodeField.getPassword());
-            out.println("/join " + roomName + " " + accessCode);
+            sendJoin(roomName, accessCode);
         }
     }
 
     private void startMessageListener() {
         new Thread(() -> {
+            do {
+                try {
+                    if (binaryProtocol) {
+                        listenBinary();
+                    } else {
+                        listenText();
+                    }
+                } catch (IOException e) {
+                    // Handled below, like the server closing the connection
+                }
+            } while (reconnect());
+
+            SwingUtilities.invokeLater(() -> {
+                displayMessage("Server connection lost. Please restart the application.", true);
+                JOptionPane.showMessageDialog(ClientUI.this,
+                        "Lost connection to the server. The application will now close.",
+                        "Connection Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            });
+        }).start();
+
+        // Request room list and user list on startup
+        requestRooms();
+        requestUsers();
+    }
+
+    // Read the line protocol, where lists arrive as lines between *_BEGIN and *_END markers
+    private void listenText() throws IOException {
+        String message;
+        List<String> collected = null;
+        String collecting = null;
+        long olderCursor = 0;
+
+        while ((message = in.readLine()) != null) {
+            if (collecting == null) {
+                if (message.equals("USER_LIST_BEGIN") || message.equals("ROOM_LIST_BEGIN")
+                        || message.equals("CHAT_HISTORY_BEGIN")) {
+                    collecting = message.substring(0, message.length() - "BEGIN".length());
+                    collected = new ArrayList<>();
+                } else if (message.startsWith("OLDER_HISTORY_BEGIN ")) {
+                    // The cursor follows the marker; 0 once the start of the room has been sent
+                    collecting = "OLDER_HISTORY_";
+                    collected = new ArrayList<>();
+                    olderCursor = Long.parseLong(message.substring("OLDER_HISTORY_BEGIN ".length()).trim());
+                } else {
+                    showServerMessage(message);
+                }
+                continue;
+            }
+
+            if (!message.equals(collecting + "END")) {
+                collected.add(message);
+                continue;
+            }
+
+            // Handle list updates
+            if (collecting.equals("USER_LIST_")) {
+                showUserList(collected);
+            } else if (collecting.equals("ROOM_LIST_")) {
+                collected.removeIf(line -> line.startsWith("Available rooms:"));
+                showRoomList(collected);
+            } else if (collecting.equals("OLDER_HISTORY_")) {
+                showOlderHistory(collected, olderCursor);
+            } else {
+                // Paging goes by the server's cursor, which it only reports with older pages
+                showHistory(collected, true, 0);
+            }
+            collecting = null;
+        }
+    }
+
+    // Get back in after the connection dropped, keeping the UI as it is: resume the session where the
+    // server still holds it, otherwise log in again as before. False if neither worked.
+    private boolean reconnect() {
+        // A server that is shutting down spreads its clients' reconnects out; wait our turn
+        long delay = reconnectAfterSeconds * 1000L;
+        reconnectAfterSeconds = 0;
+        if (delay == 0) {
+            SwingUtilities.invokeLater(() -> displayMessage("Connection lost, reconnecting...", true));
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        return (binaryProtocol && resumeSession()) || loginAgain();
+    }
+
+    // Resume the session with the token the server gave us; false if there is no session to resume
+    // or the server refused it, as a restarted one does
+    private boolean resumeSession() {
+        String token = resumeToken;
+        if (token == null) {
+            return false;
+        }
+        resumeToken = null;
+
+        long deadline = System.currentTimeMillis() + resumeGraceSeconds * 1000L;
+        long backoff = 500;
+
+        while (System.currentTimeMillis() < deadline) {
+            long wait = backoff;
             try {
-                String message;
-                boolean collectingUsers = false;
-                boolean collectingRooms = false;
-                boolean collectingHistory = false;
-
-                while ((message = in.readLine()) != null) {
-                    // Handle user list updates
-                    if (message.equals("USER_LIST_BEGIN")) {
-                        collectingUsers = true;
-                        SwingUtilities.invokeLater(() -> userListModel.clear());
-                        continue;
-                    } else if (message.equals("USER_LIST_END")) {
-                        collectingUsers = false;
-                        continue;
+                Socket socket = new Socket(serverAddress, serverPort);
+                OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+                InputStream input = new BufferedInputStream(socket.getInputStream());
+                output.write(BinaryCodec.MAGIC);
+                output.write(BinaryCodec.resume(token, lastMessageId));
+                output.flush();
+
+                BinaryCodec.Frame reply = BinaryCodec.readFrame(input, Integer.MAX_VALUE);
+                if (reply == null || reply.opcode != BinaryCodec.LOGIN_RESULT) {
+                    throw new EOFException("No login reply");
+                }
+
+                WireCodec.LoginResult result = WireCodec.LoginResult.values()[reply.readByte()];
+                if (result == WireCodec.LoginResult.RESUMED) {
+                    client = socket;
+                    binaryIn = input;
+                    binaryOut = output;
+                    SwingUtilities.invokeLater(() -> displayMessage("Reconnected.", true));
+                    return true;
+                }
+
+                socket.close();
+                if (result != WireCodec.LoginResult.RETRY_AFTER) {
+                    return false;
+                }
+                wait = reply.readVarint() * 1000L;
+            } catch (IOException e) {
+                // Server not reachable yet
+                backoff = Math.min(backoff * 2, 5000);
+            }
+
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Log in again with the details of the first login, for as long as a server restart may take.
+    // The server puts us back into General and sends its lists and history as after any login.
+    private boolean loginAgain() {
+        long deadline = System.currentTimeMillis() + RECONNECT_WINDOW_MILLIS;
+        long backoff = 500;
+        // A registered account already exists now
+        String type = loginType.equals("REGISTER") ? "LOGIN" : loginType;
+
+        while (System.currentTimeMillis() < deadline) {
+            long wait = backoff;
+            try {
+                // Ids and history positions belong to the old connection
+                roomIds.clear();
+                lastMessageId = 0;
+                LoginAttempt attempt = new LoginAttempt(serverAddress, serverPort, loginUsername, loginPassword, type);
+                if (attempt.response.endsWith("_SUCCESS")) {
+                    useConnection(attempt);
+                    if (attempt.assignedName != null && !attempt.assignedName.equals(username)) {
+                        // Anonymous users are given a new name
+                        username = attempt.assignedName;
+                        String title = "OpenChat - Connected as " + username + (isAnonymous ? " (Anonymous)" : "");
+                        SwingUtilities.invokeLater(() -> setTitle(title));
                     }
+                    showMessage("Reconnected.");
+                    showJoinedRoom("General");
+                    return true;
+                }
+
+                if (attempt.response.equals("RETRY_AFTER")) {
+                    wait = attempt.retryAfter * 1000L;
+                } else if (!attempt.response.equals("USERNAME_TAKEN")) {
+                    // Our old connection may not have been noticed dropping yet; anything else is final
+                    return false;
+                }
+            } catch (IOException e) {
+                // Server not reachable yet
+                backoff = Math.min(backoff * 2, 5000);
+            }
+
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Read binary frames; rooms arrive as ids, named by earlier room lists and JOINED_ROOM frames
+    private void listenBinary() throws IOException {
+        BinaryCodec.Frame frame;
+        while ((frame = BinaryCodec.readFrame(binaryIn, Integer.MAX_VALUE)) != null) {
+            switch (frame.opcode) {
+                case BinaryCodec.NOTICE:
+                    showMessage(frame.readString());
+                    break;
+
+                case BinaryCodec.CHAT: {
+                    frame.readVarint(); // Room; always the current one
+                    String sender = frame.readString();
+                    String text = frame.readString();
+                    long messageId = frame.readVarlong();
+                    if (messageId != 0) {
+                        if (messageId <= lastMessageId) {
+                            // Already shown; a resume can overlap with live messages
+                            break;
+                        }
+                        lastMessageId = messageId;
+                    }
+
+                    showMessage(sender.isEmpty() ? text : sender + ": " + text);
+                    break;
+                }
+
+                case BinaryCodec.PRESENCE: {
+                    WireCodec.Presence event = WireCodec.Presence.values()[frame.readByte()];
+                    int roomId = frame.readVarint();
+                    long version = frame.readVarlong();
+                    String name = frame.readString();
+                    showMessage(name + event.text);
+                    applyPresence(event, roomId, version, name);
+                    break;
+                }
+
+                case BinaryCodec.JOINED_ROOM: {
+                    int roomId = frame.readVarint();
+                    String name = frame.readString();
+                    roomIds.put(name, roomId);
+                    // History arrives without ids; a resume from here replays it in full
+                    lastMessageId = 0;
+                    showJoinedRoom(name);
+                    break;
+                }
+
+                case BinaryCodec.SESSION:
+                    resumeToken = frame.readString();
+                    resumeGraceSeconds = frame.readVarint();
+                    break;
+
+                case BinaryCodec.GOING_AWAY: {
+                    reconnectAfterSeconds = frame.readVarint();
+                    int seconds = reconnectAfterSeconds;
+                    SwingUtilities.invokeLater(() -> displayMessage(
+                            "Server is shutting down, reconnecting in " + seconds + " seconds...", true));
+                    break;
+                }
 
-                    // Handle room list updates
-                    if (message.equals("ROOM_LIST_BEGIN")) {
-                        collectingRooms = true;
-                        SwingUtilities.invokeLater(() -> roomListModel.clear());
-                        continue;
-                    } else if (message.equals("ROOM_LIST_END")) {
-                        collectingRooms = false;
-                        continue;
+                case BinaryCodec.ROOM_LIST: {
+                    int count = frame.readVarint();
+                    List<String> entries = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        int roomId = frame.readVarint();
+                        String name = frame.readString();
+                        boolean locked = frame.readByte() != 0;
+                        roomIds.put(name, roomId);
+                        entries.add(name + " " + (locked ? "🔒" : "🔓"));
                     }
+                    showRoomList(entries);
+                    break;
+                }
 
-                    // Handle chat history
-                    if (message.equals("CHAT_HISTORY_BEGIN")) {
-                        collectingHistory = true;
-                        SwingUtilities.invokeLater(() -> chatArea.setText(""));
-                        continue;
-                    } else if (message.equals("CHAT_HISTORY_END")) {
-                        collectingHistory = false;
-                        continue;
+                case BinaryCodec.USER_LIST: {
+                    userListRoomId = frame.readVarint();
+                    userListVersion = frame.readVarlong();
+                    userListRequested = false;
+                    int page = frame.readVarint();
+                    int pages = frame.readVarint();
+                    roomMembers.clear();
+                    int count = frame.readVarint();
+                    for (int i = 0; i < count; i++) {
+                        String name = frame.readString();
+                        roomMembers.put(name, frame.readByte() != 0);
+                    }
+                    showRoomMembers();
+                    if (pages > 1) {
+                        showMessage("Page " + (page + 1) + " of " + pages
+                                + " of users. Type /users <page> for another.");
                     }
+                    break;
+                }
 
-                    final String finalMessage = message;
+                case BinaryCodec.HISTORY: {
+                    frame.readVarint();
+                    int count = frame.readVarint();
+                    List<String> lines = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        lines.add(frame.readString());
+                    }
+                    long cursor = frame.hasRemaining() ? frame.readVarlong() : 0;
+                    if (lines.isEmpty()) {
+                        lines.add("No previous messages in this room.");
+                    }
+                    showHistory(lines, cursor != 0, cursor);
+                    break;
+                }
 
-                    // Process based on collection state
-                    if (collectingUsers) {
-                        SwingUtilities.invokeLater(() -> userListModel.addElement(finalMessage));
-                    } else if (collectingRooms) {
-                        if (!finalMessage.startsWith("Available rooms:")) {
-                            // Store the full message (with emoji) for renderer
-                            SwingUtilities.invokeLater(() -> roomListModel.addElement(finalMessage));
-                        }
-                    } else if (collectingHistory) {
-                        SwingUtilities.invokeLater(() -> displayMessage(finalMessage, false));
-                    } else {
-                        // Regular message
-                        SwingUtilities.invokeLater(() -> {
-                            // Update room label if room changed
-                            if (finalMessage.startsWith("You have joined room ")) {
-                                currentRoom = finalMessage.replace("You have joined room '", "")
-                                        .replace("'.", "");
-                                ((JLabel) ((JPanel) ((BorderLayout) headerPanel.getLayout())
-                                        .getLayoutComponent(BorderLayout.EAST)).getComponent(0))
-                                        .setText("Room: " + currentRoom);
-                            }
-
-                            // Display the message
-                            displayMessage(finalMessage, true);
-
-                            // Request updated lists if needed
-                            if (finalMessage.contains("has joined the chat") ||
-                                    finalMessage.contains("has left the chat") ||
-                                    finalMessage.contains("has joined the room") ||
-                                    finalMessage.contains("has left the room")) {
-                                out.println("/users");
-                            }
-                        });
+                case BinaryCodec.OLDER_HISTORY: {
+                    frame.readVarint();
+                    long cursor = frame.readVarlong();
+                    int count = frame.readVarint();
+                    List<String> lines = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        lines.add(frame.readString());
                     }
+                    showOlderHistory(lines, cursor);
+                    break;
                 }
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    displayMessage("Server connection lost. Please restart the application.", true);
-                    JOptionPane.showMessageDialog(ClientUI.this,
-                            "Lost connection to the server. The application will now close.",
-                            "Connection Error", JOptionPane.ERROR_MESSAGE);
-                    System.exit(1);
-                });
+
+                default:
+                    // Newer server; skip frames we don't understand
+                    break;
             }
-        }).start();
+        }
+    }
 
-        // Request room list and user list on startup
-        out.println("/rooms");
-        out.println("/users");
+    // Apply a join/leave to the user list if it is the next change for the listed room; after a gap
+    // (a delta dropped for a slow connection, or a list still on its way) fetch the whole list
+    private void applyPresence(WireCodec.Presence event, int roomId, long version, String name) {
+        if (roomId != userListRoomId || version <= userListVersion) {
+            // Another room, or already part of the list we have
+            return;
+        }
+
+        if (version != userListVersion + 1) {
+            if (!userListRequested) {
+                userListRequested = true;
+                requestUsers();
+            }
+            return;
+        }
+
+        userListVersion = version;
+        if (event == WireCodec.Presence.JOINED_CHAT || event == WireCodec.Presence.JOINED_ROOM) {
+            roomMembers.put(name, true);
+        } else {
+            roomMembers.remove(name);
+        }
+        showRoomMembers();
+    }
+
+    // Show roomMembers with online users first
+    private void showRoomMembers() {
+        List<String> entries = new ArrayList<>(roomMembers.size());
+        roomMembers.forEach((name, online) -> {
+            if (online) {
+                entries.add(name + " (online)");
+            }
+        });
+        roomMembers.forEach((name, online) -> {
+            if (!online) {
+                entries.add(name + " (offline)");
+            }
+        });
+        showUserList(entries);
+    }
+
+    private void showUserList(List<String> entries) {
+        SwingUtilities.invokeLater(() -> {
+            userListModel.clear();
+            entries.forEach(userListModel::addElement);
+        });
+    }
+
+    private void showRoomList(List<String> entries) {
+        // Store the full entry (with emoji) for renderer
+        SwingUtilities.invokeLater(() -> {
+            roomListModel.clear();
+            entries.forEach(roomListModel::addElement);
+        });
+    }
+
+    private void showHistory(List<String> lines, boolean hasOlder, long cursor) {
+        SwingUtilities.invokeLater(() -> {
+            chatArea.setText("");
+            lines.forEach(line -> displayMessage(line, false));
+            historyCursor = cursor;
+            hasOlderHistory = hasOlder;
+            loadingOlderHistory = false;
+        });
+    }
+
+    // Put a page of older messages above the ones shown, keeping the view where it was
+    private void showOlderHistory(List<String> lines, long cursor) {
+        SwingUtilities.invokeLater(() -> {
+            historyCursor = cursor;
+            hasOlderHistory = cursor != 0;
+            loadingOlderHistory = false;
+            if (lines.isEmpty()) {
+                return;
+            }
+
+            StringBuilder text = new StringBuilder();
+            for (String line : lines) {
+                text.append(line).append('\n');
+            }
+
+            JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+            int fromBottom = bar.getMaximum() - bar.getValue();
+            chatArea.insert(text.toString(), 0);
+
+            // The scroll bar's range only grows once the text area has been laid out again
+            SwingUtilities.invokeLater(() -> bar.setValue(bar.getMaximum() - fromBottom));
+        });
+    }
+
+    // Ask for the page of messages before the oldest one shown, unless it has been asked for already
+    private void requestOlderHistory() {
+        if (!hasOlderHistory || loadingOlderHistory) {
+            return;
+        }
+        loadingOlderHistory = true;
+
+        if (binaryProtocol) {
+            sendFrame(BinaryCodec.older(historyCursor, HISTORY_PAGE_SIZE));
+        } else {
+            out.println("/history");
+        }
+    }
+
+    // A line of the text protocol, which only says what it is in its wording
+    private void showServerMessage(String message) {
+        // Update room label if room changed
+        if (message.startsWith("You have joined room ")) {
+            showJoinedRoom(message.replace("You have joined room '", "").replace("'.", ""));
+            return;
+        }
+
+        // Sent by a server that is shutting down; reconnect once the connection closes
+        if (message.startsWith("Server is shutting down. Please reconnect in ")) {
+            reconnectAfterSeconds = Integer.parseInt(message.replaceAll("\\D", ""));
+        }
+
+        showMessage(message);
+
+        // Request updated lists if needed
+        if (message.contains("has joined the chat") ||
+                message.contains("has left the chat") ||
+                message.contains("has joined the room") ||
+                message.contains("has left the room")) {
+            requestUsers();
+        }
+    }
+
+    // Show a message as it is, with the time it arrived
+    private void showMessage(String message) {
+        SwingUtilities.invokeLater(() -> displayMessage(message, true));
+    }
+
+    private void showJoinedRoom(String roomName) {
+        SwingUtilities.invokeLater(() -> {
+            currentRoom = roomName;
+            ((JLabel) ((JPanel) ((BorderLayout) headerPanel.getLayout())
+                    .getLayoutComponent(BorderLayout.EAST)).getComponent(0))
+                    .setText("Room: " + currentRoom);
+            displayMessage("You have joined room '" + roomName + "'.", true);
+        });
     }
 
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            out.println(message);
+            if (!binaryProtocol) {
+                out.println(message);
+            } else if (message.startsWith("/")) {
+                sendFrame(BinaryCodec.command(message));
+            } else {
+                sendFrame(BinaryCodec.message(message));
+            }
             messageField.setText("");
         }
         messageField.requestFocus();
     }
 
+    private void sendJoin(String roomName, String accessCode) {
+        Integer roomId = roomIds.get(roomName);
+        if (binaryProtocol && roomId != null) {
+            sendFrame(BinaryCodec.join(roomId, accessCode));
+        } else if (binaryProtocol) {
+            sendFrame(BinaryCodec.command("/join " + roomName + " " + accessCode));
+        } else {
+            out.println(accessCode.isEmpty() ? "/join " + roomName : "/join " + roomName + " " + accessCode);
+        }
+    }
+
+    private void sendCreate(String roomName, String accessCode) {
+        if (binaryProtocol) {
+            sendFrame(BinaryCodec.create(roomName, accessCode));
+        } else {
+            out.println("/create " + roomName + " " + accessCode);
+        }
+    }
+
+    private void requestRooms() {
+        if (binaryProtocol) {
+            sendFrame(BinaryCodec.request(BinaryCodec.ROOMS));
+        } else {
+            out.println("/rooms");
+        }
+    }
+
+    private void requestUsers() {
+        if (binaryProtocol) {
+            sendFrame(BinaryCodec.request(BinaryCodec.USERS));
+        } else {
+            out.println("/users");
+        }
+    }
+
+    private void sendExit() {
+        if (binaryProtocol) {
+            sendFrame(BinaryCodec.request(BinaryCodec.EXIT));
+        } else {
+            out.println("/exit");
+        }
+    }
+
+    // Write one frame; called from both the UI thread and the listener thread
+    private void sendFrame(byte[] frame) {
+        synchronized (sendLock) {
+            try {
+                binaryOut.write(frame);
+                binaryOut.flush();
+            } catch (IOException e) {
+                // The listener notices the closed connection
+            }
+        }
+    }
+
     private void displayMessage(String message, boolean addTimestamp) {
         if (addTimestamp) {
             String timestamp = LocalTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
@@ -714,6 +1285,9 @@ public class ClientUI extends JFrame {
     }
 
     public static void main(String[] args) {
+        binaryProtocol = Arrays.asList(args).contains("--binary")
+                || "binary".equals(System.getProperty("openchat.protocol"));
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
@@ -0,0 +1,324 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded outbound queue for one client connection, shared by every thread that sends to that client.
+// Senders only enqueue complete frames (one or more lines); the connection's transport drains the
+// queue on its own schedule, so a client that stops reading never holds up the sender. When the
+// queue is full the overflow policy decides what gives.
+public class ClientWriter {
+    // Same charset the clients decode with
+    static final Charset CHARSET = Charset.defaultCharset();
+
+    // What to do when a client's queue is full
+    public enum OverflowPolicy {
+        // Drop the oldest queued frame
+        DROP_OLDEST,
+        // Drop queued presence frames first (a newer one supersedes them), then the oldest frame
+        COALESCE_PRESENCE,
+        // Disconnect the client
+        DISCONNECT;
+
+        public static OverflowPolicy fromString(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // The connection side of a writer
+    public interface Transport {
+        // Frames are waiting in the queue
+        void writeReady();
+
+        // Close the connection immediately, discarding anything queued
+        void abort();
+    }
+
+    // Totals across all writers
+    private static final AtomicLong queuedFrames = new AtomicLong();
+    private static final LongAdder droppedFrames = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+    private static final LongAdder bytesWritten = new LongAdder();
+
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Transport transport;
+    private boolean closed;
+
+    public ClientWriter(int capacity, OverflowPolicy policy) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+    }
+
+    // Must be called before the first send
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    // Encode a line once so the same bytes can be sent to many clients
+    public static byte[] encode(String line) {
+        return (line + "\n").getBytes(CHARSET);
+    }
+
+    // Encode several lines into one frame
+    public static byte[] encode(List<String> lines) {
+        StringBuilder frame = new StringBuilder();
+        for (String line : lines) {
+            frame.append(line).append('\n');
+        }
+        return frame.toString().getBytes(CHARSET);
+    }
+
+    // Queue an already encoded frame; the array is only read, so it can be shared between clients
+    public void send(byte[] frame) throws IOException {
+        enqueue(new Frame(frame, false));
+    }
+
+    // Queue a presence frame (join/leave notices, user lists), which may be coalesced under load
+    public void sendPresence(byte[] frame) throws IOException {
+        enqueue(new Frame(frame, true));
+    }
+
+    private void enqueue(Frame frame) throws IOException {
+        boolean disconnect = false;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new SocketException("Connection closed");
+            }
+
+            if (queue.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    disconnect = true;
+                    closed = true;
+                    clearQueue();
+                } else {
+                    makeRoom(frame.presence);
+                }
+            }
+
+            if (!disconnect) {
+                queue.addLast(frame);
+                queuedFrames.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (disconnect) {
+            slowConsumerDisconnects.increment();
+            transport.abort();
+            throw new SocketException("Slow consumer disconnected");
+        }
+
+        transport.writeReady();
+    }
+
+    // Free one slot according to the overflow policy
+    private void makeRoom(boolean incomingPresence) {
+        if (policy == OverflowPolicy.COALESCE_PRESENCE) {
+            int removed = 0;
+            Iterator<Frame> frames = queue.iterator();
+            while (frames.hasNext()) {
+                if (frames.next().presence) {
+                    frames.remove();
+                    removed++;
+                    // A chat frame only needs one slot; a presence frame replaces all older ones
+                    if (!incomingPresence) {
+                        break;
+                    }
+                }
+            }
+
+            if (removed > 0) {
+                recordDrops(removed);
+                return;
+            }
+        }
+
+        queue.pollFirst();
+        recordDrops(1);
+    }
+
+    private void recordDrops(int count) {
+        queuedFrames.addAndGet(-count);
+        droppedFrames.add(count);
+    }
+
+    private void clearQueue() {
+        queuedFrames.addAndGet(-queue.size());
+        queue.clear();
+    }
+
+    // Next frame to write, or null if the queue is empty; called by the transport
+    public byte[] poll() {
+        lock.lock();
+        try {
+            Frame frame = queue.pollFirst();
+            if (frame == null) {
+                return null;
+            }
+            queuedFrames.decrementAndGet();
+            bytesWritten.add(frame.bytes.length);
+            return frame.bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stop accepting frames; the transport closes the connection once the queue is written
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        transport.writeReady();
+    }
+
+    // Drop everything queued, e.g. after the connection failed
+    public void discard() {
+        lock.lock();
+        try {
+            closed = true;
+            clearQueue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True once closed and everything queued has been handed to the transport
+    public boolean isFinished() {
+        lock.lock();
+        try {
+            return closed && queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True if there are frames to write or a close to carry out
+    public boolean hasPending() {
+        lock.lock();
+        try {
+            return closed || !queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frames currently queued across all clients
+    public static long totalQueued() {
+        return queuedFrames.get();
+    }
+
+    // Frames dropped by the overflow policy across all clients
+    public static long totalDropped() {
+        return droppedFrames.sum();
+    }
+
+    // Bytes handed to transports to write, across all writers
+    public static long totalBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    // Clients disconnected because their queue filled up
+    public static long totalSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    private static class Frame {
+        final byte[] bytes;
+        final boolean presence;
+
+        Frame(byte[] bytes, boolean presence) {
+            this.bytes = bytes;
+            this.presence = presence;
+        }
+    }
+
+    // Transport for a blocking socket: a task on the given executor writes queued frames, flushing
+    // whenever the queue runs dry, and exits when there is nothing left to do.
+    public static class StreamTransport implements Transport {
+        private final Socket socket;
+        private final OutputStream out;
+        private final Executor executor;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private ClientWriter writer;
+
+        public StreamTransport(Socket socket, Executor executor) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+            this.executor = executor;
+        }
+
+        // Create a writer draining into this socket
+        public static ClientWriter open(Socket socket, Executor executor, int capacity,
+                OverflowPolicy policy) throws IOException {
+            StreamTransport transport = new StreamTransport(socket, executor);
+            transport.writer = new ClientWriter(capacity, policy);
+            transport.writer.setTransport(transport);
+            return transport.writer;
+        }
+
+        @Override
+        public void writeReady() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        @Override
+        public void abort() {
+            writer.discard();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        private void drain() {
+            try {
+                do {
+                    byte[] frame;
+                    while ((frame = writer.poll()) != null) {
+                        out.write(frame);
+                    }
+                    out.flush();
+
+                    if (writer.isFinished()) {
+                        socket.close();
+                        return;
+                    }
+
+                    scheduled.set(false);
+                    // Frames queued (or a close) after the last poll but before the flag was cleared
+                } while (writer.hasPending() && scheduled.compareAndSet(false, true));
+            } catch (IOException e) {
+                abort();
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Routes room traffic between the nodes of a cluster. Every room is owned by one node, picked by
+// the ring, which records its messages, keeps its presence and answers its history and user list
+// requests; a client connected anywhere else has its messages and joins forwarded to the owner, and
+// the owner relays what happens in the room back to every node with clients in it. Room creations
+// and registrations are announced to all nodes so every node can list rooms and log users in.
+public class Cluster implements ClusterBus.Handler {
+    // What the cluster asks of the local server
+    public interface Node {
+        // Owner: record a message sent from another node and broadcast it; false if the room is unknown
+        boolean chat(String roomName, String sender, String body);
+
+        // Owner: apply a join or leave made on another node and broadcast it; false if the room is unknown
+        boolean presenceChange(WireCodec.Presence event, String roomName, String username);
+
+        // Owner: one page of a room's user list; null if the room is unknown
+        PresenceRegistry.UserListPage userList(String roomName, int page);
+
+        // Owner: the room's messages before beforeId, or its most recent ones for 0; null if the room
+        // is unknown
+        HistoryPage history(String roomName, long beforeId, int limit);
+
+        // A message recorded by the room's owner, for the local clients in the room
+        void deliver(String roomName, long id, String sender, long timestamp, String body, Message.Kind kind);
+
+        // A presence delta from the room's owner, for the local clients in the room
+        void presence(WireCodec.Presence event, String roomName, long version, String username);
+
+        // Another node created a room
+        void roomCreated(String roomName, String accessCode);
+
+        // Another node registered a user; passwordHash is what it stored
+        void userRegistered(String username, String passwordHash);
+    }
+
+    // Sent to a room's owner
+    private static final int PRESENCE_CHANGE = 0x01;
+    private static final int CHAT = 0x02;
+    private static final int USERS_REQUEST = 0x03;
+    private static final int HISTORY_REQUEST = 0x04;
+
+    // Sent to every node
+    private static final int ROOM = 0x05;
+    private static final int USER = 0x06;
+
+    // Sent by a room's owner
+    private static final int PRESENCE = 0x81;
+    private static final int DELIVER = 0x82;
+    private static final int USERS_REPLY = 0x83;
+    private static final int HISTORY_REPLY = 0x84;
+
+    // How long to wait for a room's owner to answer a request
+    private static final long REQUEST_TIMEOUT_SECONDS = 5;
+
+    private final String self;
+    private final List<String> nodes;
+    private final ClusterRing ring;
+    private final ClusterBus bus;
+    private Node node;
+
+    // Owner side: for each owned room, the other nodes with clients in it and how many
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> interest = new ConcurrentHashMap<>();
+
+    // Requests waiting for an owner's reply, by request id
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+
+    // Answers history and user list requests, which may query the database, off the bus threads so
+    // chat relayed from the same node isn't held up behind them
+    private final ExecutorService requests;
+
+    public Cluster(String self, List<String> nodes, int pointsPerNode, ClusterBus bus, int requestThreads) {
+        this.self = self;
+        this.nodes = new ArrayList<>(nodes);
+        this.ring = new ClusterRing(nodes, pointsPerNode);
+        this.bus = bus;
+        this.requests = Executors.newFixedThreadPool(Math.max(1, requestThreads), runnable -> {
+            Thread thread = new Thread(runnable, "cluster-requests");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start(Node node) {
+        this.node = node;
+        bus.start(this);
+    }
+
+    public void close() {
+        bus.close();
+        requests.shutdownNow();
+    }
+
+    // Whether this node owns a room, and so handles it entirely locally
+    public boolean owns(String roomName) {
+        return self.equals(ring.ownerOf(roomName));
+    }
+
+    // Forward a chat message from a local client to the room's owner
+    public void sendChat(String roomName, String sender, String body) {
+        bus.send(ring.ownerOf(roomName), new BinaryCodec.FrameBuilder(CHAT)
+                .writeString(roomName)
+                .writeString(sender)
+                .writeString(body)
+                .toByteArray());
+    }
+
+    // Forward a local client's join or leave to the room's owner
+    public void sendPresenceChange(WireCodec.Presence event, String roomName, String username) {
+        bus.send(ring.ownerOf(roomName), new BinaryCodec.FrameBuilder(PRESENCE_CHANGE)
+                .writeByte(event.ordinal())
+                .writeString(roomName)
+                .writeString(username)
+                .toByteArray());
+    }
+
+    // Ask the room's owner for a page of its user list; completes with null if the owner doesn't
+    // know the room, and exceptionally if it doesn't answer in time
+    public CompletableFuture<PresenceRegistry.UserListPage> requestUserList(String roomName, int page) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<PresenceRegistry.UserListPage> reply = expect(requestId);
+        bus.send(ring.ownerOf(roomName), new BinaryCodec.FrameBuilder(USERS_REQUEST)
+                .writeVarlong(requestId)
+                .writeString(roomName)
+                .writeVarint(page)
+                .toByteArray());
+        return reply;
+    }
+
+    // Ask the room's owner for messages before beforeId, or its most recent ones for 0; completes
+    // with null if the owner doesn't know the room, and exceptionally if it doesn't answer in time
+    public CompletableFuture<HistoryPage> requestHistory(String roomName, long beforeId, int limit) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<HistoryPage> reply = expect(requestId);
+        bus.send(ring.ownerOf(roomName), new BinaryCodec.FrameBuilder(HISTORY_REQUEST)
+                .writeVarlong(requestId)
+                .writeString(roomName)
+                .writeVarlong(beforeId)
+                .writeVarint(limit)
+                .toByteArray());
+        return reply;
+    }
+
+    // Owner: pass a message recorded in an owned room on to the other nodes with clients in it
+    public void relayChat(String roomName, Message message) {
+        Map<String, Integer> interested = interest.get(roomName);
+        if (interested == null || interested.isEmpty()) {
+            return;
+        }
+
+        byte[] frame = new BinaryCodec.FrameBuilder(DELIVER)
+                .writeString(roomName)
+                .writeVarlong(message.id)
+                .writeString(message.sender != null ? message.sender : "")
+                .writeVarlong(message.timestamp)
+                .writeString(message.body)
+                .writeByte(message.kind.ordinal())
+                .toByteArray();
+        for (String other : interested.keySet()) {
+            bus.send(other, frame);
+        }
+    }
+
+    // Owner: pass a presence delta of an owned room on to the other nodes with clients in it.
+    // Called with the room's presence lock held, which keeps the deltas in version order.
+    public void relayPresence(WireCodec.Presence event, String roomName, long version, String username) {
+        Map<String, Integer> interested = interest.get(roomName);
+        if (interested == null || interested.isEmpty()) {
+            return;
+        }
+
+        byte[] frame = new BinaryCodec.FrameBuilder(PRESENCE)
+                .writeByte(event.ordinal())
+                .writeString(roomName)
+                .writeVarlong(version)
+                .writeString(username)
+                .toByteArray();
+        for (String other : interested.keySet()) {
+            bus.send(other, frame);
+        }
+    }
+
+    // Tell every other node about a room created here
+    public void announceRoom(String roomName, String accessCode) {
+        broadcast(new BinaryCodec.FrameBuilder(ROOM)
+                .writeString(roomName)
+                .writeString(accessCode)
+                .toByteArray());
+    }
+
+    // Tell every other node about a user registered here, so they can log in anywhere
+    public void announceUser(String username, String passwordHash) {
+        broadcast(new BinaryCodec.FrameBuilder(USER)
+                .writeString(username)
+                .writeString(passwordHash)
+                .toByteArray());
+    }
+
+    @Override
+    public void onFrame(String from, BinaryCodec.Frame frame) {
+        try {
+            switch (frame.opcode) {
+                case CHAT:
+                    node.chat(frame.readString(), frame.readString(), frame.readString());
+                    break;
+
+                case PRESENCE_CHANGE:
+                    onPresenceChange(from, WireCodec.Presence.values()[frame.readByte()], frame.readString(),
+                            frame.readString());
+                    break;
+
+                case USERS_REQUEST:
+                    onUsersRequest(from, frame.readVarlong(), frame.readString(), frame.readVarint());
+                    break;
+
+                case HISTORY_REQUEST:
+                    onHistoryRequest(from, frame.readVarlong(), frame.readString(), frame.readVarlong(),
+                            frame.readVarint());
+                    break;
+
+                case ROOM:
+                    node.roomCreated(frame.readString(), frame.readString());
+                    break;
+
+                case USER:
+                    node.userRegistered(frame.readString(), frame.readString());
+                    break;
+
+                case DELIVER: {
+                    String roomName = frame.readString();
+                    long id = frame.readVarlong();
+                    String sender = frame.readString();
+                    long timestamp = frame.readVarlong();
+                    String body = frame.readString();
+                    Message.Kind kind = Message.Kind.values()[frame.readByte()];
+                    node.deliver(roomName, id, sender, timestamp, body, kind);
+                    break;
+                }
+
+                case PRESENCE:
+                    node.presence(WireCodec.Presence.values()[frame.readByte()], frame.readString(),
+                            frame.readVarlong(), frame.readString());
+                    break;
+
+                case USERS_REPLY:
+                    onUsersReply(frame);
+                    break;
+
+                case HISTORY_REPLY:
+                    onHistoryReply(frame);
+                    break;
+
+                default:
+                    Log.warn("cluster.unknown_frame", "opcode", frame.opcode, "from", from);
+                    break;
+            }
+        } catch (IOException e) {
+            Log.warn("cluster.malformed_frame", e, "from", from);
+        }
+    }
+
+    // A client on another node joined or left an owned room. The sending node counts as interested
+    // from its first join until its last leave, and hears about its own clients' changes too.
+    private void onPresenceChange(String from, WireCodec.Presence event, String roomName, String username) {
+        boolean joining = event == WireCodec.Presence.JOINED_CHAT || event == WireCodec.Presence.JOINED_ROOM;
+        if (joining) {
+            interest.computeIfAbsent(roomName, name -> new ConcurrentHashMap<>()).merge(from, 1, Integer::sum);
+        }
+
+        node.presenceChange(event, roomName, username);
+
+        if (!joining) {
+            interest.computeIfPresent(roomName, (name, interested) -> {
+                interested.computeIfPresent(from, (other, count) -> count > 1 ? count - 1 : null);
+                return interested.isEmpty() ? null : interested;
+            });
+        }
+    }
+
+    private void onUsersRequest(String from, long requestId, String roomName, int page) {
+        requests.execute(() -> {
+            PresenceRegistry.UserListPage list = node.userList(roomName, page);
+
+            BinaryCodec.FrameBuilder reply = new BinaryCodec.FrameBuilder(USERS_REPLY).writeVarlong(requestId);
+            if (list == null) {
+                reply.writeByte(0);
+            } else {
+                reply.writeByte(1)
+                        .writeVarlong(list.version)
+                        .writeVarint(list.page)
+                        .writeVarint(list.pages);
+                writeNames(reply, list.online);
+                writeNames(reply, list.offline);
+            }
+            bus.send(from, reply.toByteArray());
+        });
+    }
+
+    private void onHistoryRequest(String from, long requestId, String roomName, long beforeId, int limit) {
+        requests.execute(() -> {
+            HistoryPage page = node.history(roomName, beforeId, limit);
+
+            BinaryCodec.FrameBuilder reply = new BinaryCodec.FrameBuilder(HISTORY_REPLY).writeVarlong(requestId);
+            if (page == null) {
+                reply.writeByte(0);
+            } else {
+                reply.writeByte(1)
+                        .writeVarlong(page.cursor)
+                        .writeVarint(page.messages.size());
+                for (Message message : page.messages) {
+                    reply.writeVarlong(message.id)
+                            .writeString(message.sender != null ? message.sender : "")
+                            .writeVarlong(message.timestamp)
+                            .writeString(message.body)
+                            .writeByte(message.kind.ordinal());
+                }
+            }
+            bus.send(from, reply.toByteArray());
+        });
+    }
+
+    private void onUsersReply(BinaryCodec.Frame frame) throws IOException {
+        CompletableFuture<PresenceRegistry.UserListPage> reply = claim(frame.readVarlong());
+        if (reply == null) {
+            return;
+        }
+        if (frame.readByte() == 0) {
+            reply.complete(null);
+            return;
+        }
+
+        long version = frame.readVarlong();
+        int page = frame.readVarint();
+        int pages = frame.readVarint();
+        List<String> online = readNames(frame);
+        List<String> offline = readNames(frame);
+        reply.complete(new PresenceRegistry.UserListPage(version, page, pages, online, offline));
+    }
+
+    // The messages keep the owner's ids; their room id is left for the caller to fill in with its own
+    private void onHistoryReply(BinaryCodec.Frame frame) throws IOException {
+        CompletableFuture<HistoryPage> reply = claim(frame.readVarlong());
+        if (reply == null) {
+            return;
+        }
+        if (frame.readByte() == 0) {
+            reply.complete(null);
+            return;
+        }
+
+        long cursor = frame.readVarlong();
+        int count = frame.readVarint();
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = frame.readVarlong();
+            String sender = frame.readString();
+            long timestamp = frame.readVarlong();
+            String body = frame.readString();
+            Message.Kind kind = Message.Kind.values()[frame.readByte()];
+            messages.add(new Message(id, null, kind == Message.Kind.SYSTEM ? null : sender, timestamp, body, kind));
+        }
+        reply.complete(new HistoryPage(Collections.unmodifiableList(messages), cursor));
+    }
+
+    private <T> CompletableFuture<T> expect(long requestId) {
+        CompletableFuture<T> reply = new CompletableFuture<>();
+        pending.put(requestId, reply);
+        reply.orTimeout(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((result, error) -> pending.remove(requestId));
+        return reply;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> claim(long requestId) {
+        return (CompletableFuture<T>) pending.remove(requestId);
+    }
+
+    private void broadcast(byte[] frame) {
+        for (String other : nodes) {
+            if (!other.equals(self)) {
+                bus.send(other, frame);
+            }
+        }
+    }
+
+    private static void writeNames(BinaryCodec.FrameBuilder builder, List<String> names) {
+        builder.writeVarint(names.size());
+        for (String name : names) {
+            builder.writeString(name);
+        }
+    }
+
+    private static List<String> readNames(BinaryCodec.Frame frame) throws IOException {
+        int count = frame.readVarint();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(frame.readString());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,20 @@
+import java.io.Closeable;
+
+// Carries frames between the nodes of a cluster. Frames from one node to another arrive in the
+// order they were sent, each is handed to the receiving node's handler on a single thread per
+// sender, and delivery is best effort: a frame sent to a node that is down is dropped.
+public interface ClusterBus extends Closeable {
+    // Receives frames sent to this node
+    interface Handler {
+        void onFrame(String fromNode, BinaryCodec.Frame frame);
+    }
+
+    // Start delivering frames to handler; nothing is delivered before this is called
+    void start(Handler handler);
+
+    // Queue a frame built with BinaryCodec.FrameBuilder for another node; never blocks on the network
+    void send(String node, byte[] frame);
+
+    @Override
+    void close();
+}
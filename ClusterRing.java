@@ -0,0 +1,46 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hash ring deciding which node owns each room. Every node is placed on the ring at a
+// number of points, and a room belongs to the first node at or after its name's hash, so adding or
+// removing a node only moves the rooms next to its points. All nodes build the same ring from the
+// same node list, so they agree on owners without talking to each other.
+public class ClusterRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public ClusterRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+
+        for (String node : nodes) {
+            for (int i = 0; i < Math.max(1, pointsPerNode); i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // The node that owns a room; rooms are placed by name, which is the same on every node
+    public String ownerOf(String roomName) {
+        Map.Entry<Long, String> entry = points.ceilingEntry(hash(roomName));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    // First eight bytes of the MD5 digest, which spreads similar names evenly around the ring
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (digest[i] & 0xFF);
+            }
+            return value;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
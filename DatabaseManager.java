@@ -1,29 +1,143 @@
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DatabaseManager {
-    private Connection connection;
-    private final String dbUrl = "jdbc:sqlite:chat_app.db";
+    private final String dbUrl;
+
+    // The database runs in WAL mode so readers never wait for the writer: every insert, update and
+    // delete goes through the single writer connection, and lookups borrow one of the reader
+    // connections. Each connection keeps its own prepared statements, compiled on first use.
+    private PooledConnection writer;
+    private BlockingQueue<PooledConnection> readers;
+
+    // Set by close(); a reader returned after this is closed instead of going back in the pool
+    private volatile boolean readersClosed;
+    private final int readerCount;
+
+    // The SQLite driver synchronizes internally and blocks in native code, which pins virtual threads
+    // to their carrier; taking this lock before using the writer means only one thread at a time is
+    // inside it while the rest park without pinning. Readers are handed out one thread at a time.
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Time taken by each database method, waiting for a connection included, reported as db.<method>
+    private static final LatencyHistogram registerUserTime = Metrics.timer("db.registerUser");
+    private static final LatencyHistogram getPasswordTime = Metrics.timer("db.getPassword");
+    private static final LatencyHistogram updatePasswordTime = Metrics.timer("db.updatePassword");
+    private static final LatencyHistogram usernameExistsTime = Metrics.timer("db.usernameExists");
+    private static final LatencyHistogram updateUserLastSeenTime = Metrics.timer("db.updateUserLastSeen");
+    private static final LatencyHistogram createRoomTime = Metrics.timer("db.createRoom");
+    private static final LatencyHistogram getRoomByIdTime = Metrics.timer("db.getRoomById");
+    private static final LatencyHistogram getRoomByNameTime = Metrics.timer("db.getRoomByName");
+    private static final LatencyHistogram getAllRoomsTime = Metrics.timer("db.getAllRooms");
+    private static final LatencyHistogram addUserToRoomTime = Metrics.timer("db.addUserToRoom");
+    private static final LatencyHistogram removeUserFromRoomTime = Metrics.timer("db.removeUserFromRoom");
+    private static final LatencyHistogram getUsersInRoomTime = Metrics.timer("db.getUsersInRoom");
+    private static final LatencyHistogram getRoomsForUserTime = Metrics.timer("db.getRoomsForUser");
+    private static final LatencyHistogram writeBatchTime = Metrics.timer("db.writeBatch");
+    private static final LatencyHistogram getMessagesBeforeTime = Metrics.timer("db.getMessagesBefore");
+    private static final LatencyHistogram getMessagesAfterTime = Metrics.timer("db.getMessagesAfter");
+
+    // Write-behind queue for chat messages: handlers only enqueue, and a background thread inserts
+    // them in batched transactions so throughput is bounded by commits rather than per-row fsyncs
+    private static final int MAX_PENDING_MESSAGES = 10000;
+    private final ArrayDeque<Message> pendingMessages = new ArrayDeque<>();
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition messagesPending = pendingLock.newCondition();
+    private final Condition spaceAvailable = pendingLock.newCondition();
+
+    // Tries at writing a batch before it goes back on the queue, and the wait after the first failure,
+    // doubled after each one; a busy or briefly unavailable database gets about a second and a half
+    private static final int WRITE_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+
+    // How long the background writer waits before trying again after a batch went back on the queue
+    private static final long FAILED_BATCH_PAUSE_MILLIS = 1000;
+
+    // Held while taking a batch off the queue and writing it, so batches commit in queue order
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    // Id of the newest message handed out. Only this process writes messages, so ids are assigned
+    // when a message is queued and clients can be told a message's id before it reaches the table.
+    private final AtomicLong lastMessageId = new AtomicLong();
+
+    // The batch taken off the queue and being written, guarded by pendingLock. Together with the
+    // queue it holds every message not yet stored, so history reads can serve them from memory.
+    private List<Message> writingBatch = List.of();
+
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private volatile boolean closing = false;
+    private Thread messageWriter;
+
+    // Schema changes for databases created by older versions, applied in order at startup. The
+    // database's user_version records how many have run, so each one runs exactly once per file.
+    // Append new migrations to the end; never change one that has been released.
+    private static final String[][] MIGRATIONS = {
+            // 1: history loads read a room's newest messages by id
+            { "CREATE INDEX IF NOT EXISTS idx_messages_room ON messages(room_id, id)" },
+            // 2: rooms a user belongs to
+            { "CREATE INDEX IF NOT EXISTS idx_room_members_username ON room_members(username)" },
+            // 3: room names are unique; rooms created with a duplicate name before now get a suffix
+            {
+                    "UPDATE rooms SET name = name || '-' || substr(id, 1, 8) " +
+                            "WHERE rowid NOT IN (SELECT MIN(rowid) FROM rooms GROUP BY name)",
+                    "CREATE UNIQUE INDEX IF NOT EXISTS idx_rooms_name ON rooms(name)"
+            },
+    };
 
     public DatabaseManager() {
+        this("chat_app.db", 100, 50, 4);
+    }
+
+    // dbFile: SQLite database file; batchSize: messages per transaction; flushIntervalMillis: longest
+    // a queued message waits; readerCount: connections used for lookups alongside the writer
+    public DatabaseManager(String dbFile, int batchSize, long flushIntervalMillis, int readerCount) {
+        this.dbUrl = "jdbc:sqlite:" + dbFile;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushIntervalMillis = Math.max(1, flushIntervalMillis);
+        this.readerCount = Math.max(1, readerCount);
+
         try {
             // Load SQLite JDBC driver
             Class.forName("org.sqlite.JDBC");
             connect();
             initializeTables();
+
+            messageWriter = new Thread(this::writePendingMessages, "message-writer");
+            messageWriter.setDaemon(true);
+            messageWriter.start();
         } catch (ClassNotFoundException e) {
-            System.err.println(
-                    "SQLite JDBC Driver not found. Make sure you have sqlite-jdbc-3.x.x.jar in your classpath.");
-            e.printStackTrace();
+            Log.error("db.driver_missing", e, "hint", "put sqlite-jdbc-3.x.x.jar on the classpath");
         } catch (SQLException e) {
-            System.err.println("Error initializing database: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("db.init_failed", e, "file", dbFile);
         }
     }
 
     private void connect() throws SQLException {
-        connection = DriverManager.getConnection(dbUrl);
+        Connection connection = DriverManager.getConnection(dbUrl);
         connection.setAutoCommit(true);
+        try (Statement stmt = connection.createStatement()) {
+            // WAL is a property of the database file, so it only has to be switched on once
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA busy_timeout=5000");
+        }
+        writer = new PooledConnection(connection);
+
+        readers = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            Connection reader = DriverManager.getConnection(dbUrl);
+            try (Statement stmt = reader.createStatement()) {
+                stmt.execute("PRAGMA busy_timeout=5000");
+                stmt.execute("PRAGMA query_only=1");
+            }
+            readers.add(new PooledConnection(reader));
+        }
     }
 
     private void initializeTables() throws SQLException {
@@ -64,46 +178,167 @@ public class DatabaseManager {
                 "FOREIGN KEY (username) REFERENCES users(username)" +
                 ")";
 
-        try (Statement stmt = connection.createStatement()) {
+        try (Statement stmt = writer.connection.createStatement()) {
             stmt.execute(createUsersTable);
             stmt.execute(createRoomsTable);
             stmt.execute(createMessagesTable);
             stmt.execute(createRoomMembersTable);
         }
 
+        migrate();
+
+        try (Statement stmt = writer.connection.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(id), 0) FROM messages")) {
+            lastMessageId.set(rs.next() ? rs.getLong(1) : 0);
+        }
+
         // Create default general room if it doesn't exist
         if (getRoomByName("General") == null) {
             createRoom("General", "public");
         }
     }
 
+    // Bring the schema up to the latest version, one transaction per migration
+    private void migrate() throws SQLException {
+        Connection connection = writer.connection;
+        int version;
+        try (Statement stmt = connection.createStatement();
+                ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        for (int next = version + 1; next <= MIGRATIONS.length; next++) {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                for (String sql : MIGRATIONS[next - 1]) {
+                    stmt.execute(sql);
+                }
+                stmt.execute("PRAGMA user_version = " + next);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw new SQLException("Schema migration " + next + " failed: " + e.getMessage(), e);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            Log.info("db.migrated", "version", next);
+        }
+    }
+
+    // Work done with one pooled connection
+    private interface SqlWork<T> {
+        T run(PooledConnection db) throws SQLException;
+    }
+
+    // Run a lookup on a reader connection, waiting for one to come free if they are all in use. The
+    // time taken, waiting included, is recorded in the given timer.
+    private <T> T read(LatencyHistogram timer, SqlWork<T> work) throws SQLException {
+        if (readers == null || readersClosed) {
+            throw new SQLException("Database is not available");
+        }
+
+        long start = System.nanoTime();
+        PooledConnection db;
+        try {
+            db = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+
+        try {
+            return work.run(db);
+        } finally {
+            readers.add(db);
+            // Borrowed while close() emptied the pool; close it along with anything else it missed
+            if (readersClosed) {
+                closeIdleReaders();
+            }
+            timer.record(System.nanoTime() - start);
+        }
+    }
+
+    // Close the readers in the pool; each one is taken out first, so none is closed twice
+    private void closeIdleReaders() {
+        PooledConnection reader;
+        while ((reader = readers.poll()) != null) {
+            reader.close();
+        }
+    }
+
+    // Run an update on the writer connection, recording the time taken like read
+    private <T> T write(LatencyHistogram timer, SqlWork<T> work) throws SQLException {
+        if (writer == null) {
+            throw new SQLException("Database is not available");
+        }
+
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            return work.run(writer);
+        } finally {
+            writeLock.unlock();
+            timer.record(System.nanoTime() - start);
+        }
+    }
+
     // User methods
     public boolean registerUser(String username, String password, boolean isAnonymous) {
         String sql = "INSERT INTO users(username, password, is_anonymous) VALUES(?, ?, ?)";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.setString(2, password);
-            pstmt.setBoolean(3, isAnonymous);
-            pstmt.executeUpdate();
-            return true;
+        try {
+            return write(registerUserTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+                pstmt.setString(2, password);
+                pstmt.setBoolean(3, isAnonymous);
+                pstmt.executeUpdate();
+                return true;
+            });
         } catch (SQLException e) {
-            System.err.println("Error registering user: " + e.getMessage());
+            Log.warn("db.registerUser_failed", e);
             return false;
         }
     }
 
-    public boolean isValidUser(String username, String password) {
-        String sql = "SELECT * FROM users WHERE username = ? AND password = ? AND is_anonymous = 0";
+    // Stored password of a registered user, a PasswordHasher hash or legacy plaintext; null for
+    // unknown and anonymous users
+    // The stored password of a registered user, or null if there is no such user; a database error
+    // is thrown rather than taken for a missing user
+    public String findPassword(String username) throws SQLException {
+        String sql = "SELECT password FROM users WHERE username = ? AND is_anonymous = 0";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        return read(getPasswordTime, db -> {
+            PreparedStatement pstmt = db.prepare(sql);
             pstmt.setString(1, username);
-            pstmt.setString(2, password);
 
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("password") : null;
+            }
+        });
+    }
+
+    public String getPassword(String username) {
+        try {
+            return findPassword(username);
+        } catch (SQLException e) {
+            Log.warn("db.getPassword_failed", e);
+            return null;
+        }
+    }
+
+    public boolean updatePassword(String username, String password) {
+        String sql = "UPDATE users SET password = ? WHERE username = ?";
+
+        try {
+            return write(updatePasswordTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, password);
+                pstmt.setString(2, username);
+                return pstmt.executeUpdate() > 0;
+            });
         } catch (SQLException e) {
-            System.err.println("Error validating user: " + e.getMessage());
+            Log.warn("db.updatePassword_failed", e);
             return false;
         }
     }
@@ -111,13 +346,17 @@ public class DatabaseManager {
     public boolean usernameExists(String username) {
         String sql = "SELECT username FROM users WHERE username = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next();
+        try {
+            return read(usernameExistsTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next();
+                }
+            });
         } catch (SQLException e) {
-            System.err.println("Error checking username: " + e.getMessage());
+            Log.warn("db.usernameExists_failed", e);
             return false;
         }
     }
@@ -125,11 +364,14 @@ public class DatabaseManager {
     public void updateUserLastSeen(String username) {
         String sql = "UPDATE users SET last_seen = CURRENT_TIMESTAMP WHERE username = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, username);
-            pstmt.executeUpdate();
+        try {
+            write(updateUserLastSeenTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+                return pstmt.executeUpdate();
+            });
         } catch (SQLException e) {
-            System.err.println("Error updating user last seen: " + e.getMessage());
+            Log.warn("db.updateUserLastSeen_failed", e);
         }
     }
 
@@ -139,14 +381,17 @@ public class DatabaseManager {
 
         Room room = new Room(name, accessCode);
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, room.getId());
-            pstmt.setString(2, name);
-            pstmt.setString(3, accessCode);
-            pstmt.executeUpdate();
-            return room;
+        try {
+            return write(createRoomTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, room.getId());
+                pstmt.setString(2, name);
+                pstmt.setString(3, accessCode);
+                pstmt.executeUpdate();
+                return room;
+            });
         } catch (SQLException e) {
-            System.err.println("Error creating room: " + e.getMessage());
+            Log.warn("db.createRoom_failed", e);
             return null;
         }
     }
@@ -154,74 +399,79 @@ public class DatabaseManager {
     public Room getRoomById(String roomId) {
         String sql = "SELECT id, name, access_code FROM rooms WHERE id = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomId);
-
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return new Room(
-                        rs.getString("id"),
-                        rs.getString("name"),
-                        rs.getString("access_code"));
-            }
+        try {
+            return read(getRoomByIdTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomId);
+
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? readRoom(rs) : null;
+                }
+            });
         } catch (SQLException e) {
-            System.err.println("Error getting room: " + e.getMessage());
+            Log.warn("db.getRoomById_failed", e);
+            return null;
         }
-
-        return null;
     }
 
     public Room getRoomByName(String roomName) {
         String sql = "SELECT id, name, access_code FROM rooms WHERE name = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomName);
-
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return new Room(
-                        rs.getString("id"),
-                        rs.getString("name"),
-                        rs.getString("access_code"));
-            }
+        try {
+            return read(getRoomByNameTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomName);
+
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    return rs.next() ? readRoom(rs) : null;
+                }
+            });
         } catch (SQLException e) {
-            System.err.println("Error getting room by name: " + e.getMessage());
+            Log.warn("db.getRoomByName_failed", e);
+            return null;
         }
-
-        return null;
     }
 
     public List<Room> getAllRooms() {
         String sql = "SELECT id, name, access_code FROM rooms";
-        List<Room> rooms = new ArrayList<>();
-
-        try (Statement stmt = connection.createStatement();
-                ResultSet rs = stmt.executeQuery(sql)) {
 
-            while (rs.next()) {
-                rooms.add(new Room(
-                        rs.getString("id"),
-                        rs.getString("name"),
-                        rs.getString("access_code")));
-            }
+        try {
+            return read(getAllRoomsTime, db -> {
+                List<Room> rooms = new ArrayList<>();
+                try (ResultSet rs = db.prepare(sql).executeQuery()) {
+                    while (rs.next()) {
+                        rooms.add(readRoom(rs));
+                    }
+                }
+                return rooms;
+            });
         } catch (SQLException e) {
-            System.err.println("Error getting all rooms: " + e.getMessage());
+            Log.warn("db.getAllRooms_failed", e);
+            return new ArrayList<>();
         }
+    }
 
-        return rooms;
+    private static Room readRoom(ResultSet rs) throws SQLException {
+        return new Room(
+                rs.getString("id"),
+                rs.getString("name"),
+                rs.getString("access_code"));
     }
 
     // Room membership methods
     public boolean addUserToRoom(String username, String roomId) {
         String sql = "INSERT INTO room_members(room_id, username) VALUES(?, ?)";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomId);
-            pstmt.setString(2, username);
-            pstmt.executeUpdate();
-            return true;
+        try {
+            return write(addUserToRoomTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomId);
+                pstmt.setString(2, username);
+                pstmt.executeUpdate();
+                return true;
+            });
         } catch (SQLException e) {
-            System.err.println("Error adding user to room: " + e.getMessage());
+            Log.warn("db.addUserToRoom_failed", e);
             return false;
         }
     }
@@ -229,106 +479,479 @@ public class DatabaseManager {
     public boolean removeUserFromRoom(String username, String roomId) {
         String sql = "DELETE FROM room_members WHERE room_id = ? AND username = ?";
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomId);
-            pstmt.setString(2, username);
-            pstmt.executeUpdate();
-            return true;
+        try {
+            return write(removeUserFromRoomTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomId);
+                pstmt.setString(2, username);
+                pstmt.executeUpdate();
+                return true;
+            });
         } catch (SQLException e) {
-            System.err.println("Error removing user from room: " + e.getMessage());
+            Log.warn("db.removeUserFromRoom_failed", e);
             return false;
         }
     }
 
     public List<String> getUsersInRoom(String roomId) {
         String sql = "SELECT username FROM room_members WHERE room_id = ?";
-        List<String> users = new ArrayList<>();
-
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomId);
 
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                users.add(rs.getString("username"));
-            }
+        try {
+            return read(getUsersInRoomTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomId);
+
+                List<String> users = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        users.add(rs.getString("username"));
+                    }
+                }
+                return users;
+            });
         } catch (SQLException e) {
-            System.err.println("Error getting users in room: " + e.getMessage());
+            Log.warn("db.getUsersInRoom_failed", e);
+            return new ArrayList<>();
         }
-
-        return users;
     }
 
     public List<Room> getRoomsForUser(String username) {
         String sql = "SELECT r.id, r.name, r.access_code FROM rooms r " +
                 "INNER JOIN room_members rm ON r.id = rm.room_id " +
                 "WHERE rm.username = ?";
-        List<Room> rooms = new ArrayList<>();
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, username);
+        try {
+            return read(getRoomsForUserTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, username);
+
+                List<Room> rooms = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        rooms.add(readRoom(rs));
+                    }
+                }
+                return rooms;
+            });
+        } catch (SQLException e) {
+            Log.warn("db.getRoomsForUser_failed", e);
+            return new ArrayList<>();
+        }
+    }
+
+    // Message methods
+    // Queue a message for the background writer; blocks only if the writer is far behind. Returns
+    // the message, with the id it will be stored under.
+    public Message queueMessage(String roomId, String username, String content) {
+        return queueMessage(roomId, username, content, System.currentTimeMillis());
+    }
+
+    // Queue a message sent at the given time (milliseconds since the epoch)
+    public Message queueMessage(String roomId, String username, String content, long sentAt) {
+        pendingLock.lock();
+        try {
+            while (pendingMessages.size() >= MAX_PENDING_MESSAGES && !closing) {
+                spaceAvailable.awaitUninterruptibly();
+            }
+
+            // Assigned under the queue lock so ids reach the table in increasing order
+            Message message = new Message(lastMessageId.incrementAndGet(), roomId, username, sentAt, content,
+                    Message.Kind.CHAT);
+            pendingMessages.addLast(message);
 
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                rooms.add(new Room(
-                        rs.getString("id"),
-                        rs.getString("name"),
-                        rs.getString("access_code")));
+            // Wake the writer when the first message arrives (to start its timer) and when a batch is full
+            int size = pendingMessages.size();
+            if (size == 1 || size >= batchSize) {
+                messagesPending.signal();
             }
-        } catch (SQLException e) {
-            System.err.println("Error getting rooms for user: " + e.getMessage());
+            return message;
+        } finally {
+            pendingLock.unlock();
         }
+    }
 
-        return rooms;
+    // Write everything queued so far on the calling thread; false if the database kept failing, in
+    // which case the messages stay queued for the background writer
+    public boolean flushPendingMessages() {
+        flushLock.lock();
+        try {
+            List<Message> batch;
+            while (!(batch = takeBatch(Integer.MAX_VALUE)).isEmpty()) {
+                if (!writeBatch(batch)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
     }
 
-    // Message methods
-    public boolean storeMessage(String roomId, String username, String content) {
-        String sql = "INSERT INTO messages(room_id, username, content) VALUES(?, ?, ?)";
-
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomId);
-            pstmt.setString(2, username);
-            pstmt.setString(3, content);
-            pstmt.executeUpdate();
+    // Messages queued and not yet stored
+    public int pendingMessageCount() {
+        pendingLock.lock();
+        try {
+            return pendingMessages.size();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // Background writer: wait until a batch fills up or the oldest message has waited long enough
+    private void writePendingMessages() {
+        while (!closing) {
+            pendingLock.lock();
+            try {
+                while (pendingMessages.isEmpty() && !closing) {
+                    messagesPending.awaitUninterruptibly();
+                }
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                long remaining;
+                while (pendingMessages.size() < batchSize && !closing
+                        && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        messagesPending.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            } finally {
+                pendingLock.unlock();
+            }
+
+            boolean written;
+            flushLock.lock();
+            try {
+                written = writeBatch(takeBatch(batchSize));
+            } finally {
+                flushLock.unlock();
+            }
+
+            // The batch is back on the queue; give the database a moment before trying it again
+            if (!written && !closing) {
+                try {
+                    Thread.sleep(FAILED_BATCH_PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    // Try again now
+                }
+            }
+        }
+    }
+
+    private List<Message> takeBatch(int maxSize) {
+        pendingLock.lock();
+        try {
+            int size = Math.min(maxSize, pendingMessages.size());
+            List<Message> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                batch.add(pendingMessages.pollFirst());
+            }
+            writingBatch = batch;
+            spaceAvailable.signalAll();
+            return batch;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // Put a batch that could not be written back at the front of the queue, ahead of newer messages
+    private void requeue(List<Message> batch) {
+        pendingLock.lock();
+        try {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                pendingMessages.addFirst(batch.get(i));
+            }
+            writingBatch = List.of();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // Insert a batch of messages in one transaction, retrying with backoff when it fails, e.g. on a
+    // busy database. Clients were already told these messages' ids, so a batch that still fails goes
+    // back on the queue rather than being dropped, and false is returned.
+    private boolean writeBatch(List<Message> batch) {
+        if (batch.isEmpty()) {
             return true;
-        } catch (SQLException e) {
-            System.err.println("Error storing message: " + e.getMessage());
-            return false;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                writeBatchOnce(batch);
+                finishBatch();
+                return true;
+            } catch (SQLException e) {
+                if (attempt == WRITE_ATTEMPTS) {
+                    Log.error("db.writeBatch_failed", e, "messages", batch.size(), "attempts", attempt);
+                    requeue(batch);
+                    return false;
+                }
+                Log.warn("db.writeBatch_retrying", e, "messages", batch.size(), "attempt", attempt);
+            }
+
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                requeue(batch);
+                return false;
+            }
+        }
+    }
+
+    // The written batch can now be read from the table
+    private void finishBatch() {
+        pendingLock.lock();
+        try {
+            writingBatch = List.of();
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    // A room's messages that are not stored yet, as of one moment. Every message with an id from
+    // firstId to lastId was still in memory then, and every one below firstId was already stored, so
+    // a history read takes the ids below firstId from the table and the rest from here.
+    private static class Unwritten {
+        final List<Message> messages;
+        final long firstId;
+        final long lastId;
+
+        Unwritten(List<Message> messages, long firstId, long lastId) {
+            this.messages = messages;
+            this.firstId = firstId;
+            this.lastId = lastId;
         }
     }
 
-    public List<String> getRecentMessages(String roomId, int limit) {
-        String sql = "SELECT username, content, timestamp FROM messages " +
-                "WHERE room_id = ? ORDER BY timestamp DESC LIMIT ?";
-        List<String> messages = new ArrayList<>();
+    private Unwritten unwritten(String roomId) {
+        pendingLock.lock();
+        try {
+            long lastId = lastMessageId.get();
+            List<Message> messages = new ArrayList<>();
+            long firstId = lastId + 1;
+            for (Collection<Message> part : List.of(writingBatch, pendingMessages)) {
+                for (Message message : part) {
+                    firstId = Math.min(firstId, message.id);
+                    if (message.roomId.equals(roomId)) {
+                        messages.add(message);
+                    }
+                }
+            }
+            return new Unwritten(messages, firstId, lastId);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
 
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, roomId);
-            pstmt.setInt(2, limit);
+    private void writeBatchOnce(List<Message> batch) throws SQLException {
+        // Same UTC "YYYY-MM-DD HH:MM:SS" format as CURRENT_TIMESTAMP, but from when the message was sent
+        String sql = "INSERT INTO messages(id, room_id, username, content, timestamp) " +
+                "VALUES(?, ?, ?, ?, datetime(? / 1000, 'unixepoch'))";
+
+        write(writeBatchTime, db -> {
+            Connection connection = db.connection;
+            PreparedStatement pstmt = db.prepare(sql);
+            connection.setAutoCommit(false);
+            try {
+                for (Message message : batch) {
+                    pstmt.setLong(1, message.id);
+                    pstmt.setString(2, message.roomId);
+                    pstmt.setString(3, message.sender);
+                    pstmt.setString(4, message.body);
+                    pstmt.setLong(5, message.timestamp);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                pstmt.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
 
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                Timestamp timestamp = rs.getTimestamp("timestamp");
-                String username = rs.getString("username");
-                String content = rs.getString("content");
+    // The last limit messages of a room, oldest first
+    public List<Message> getRecentMessages(String roomId, int limit) {
+        return getMessagesBefore(roomId, 0, limit);
+    }
 
-                // Format: [timestamp] username: content
-                messages.add(0, "[" + timestamp + "] " + username + ": " + content);
+    // Up to limit messages of a room with ids below beforeId (or the newest, if beforeId is 0),
+    // oldest first. Messages still queued for the writer come from memory, so a read never waits for
+    // a flush; older ones seek straight to their place on the (room_id, id) index, so a page deep
+    // into a long history costs the same as the first one.
+    public List<Message> getMessagesBefore(String roomId, long beforeId, int limit) {
+        Unwritten unwritten = unwritten(roomId);
+        long upTo = beforeId > 0 ? Math.min(beforeId, unwritten.lastId + 1) : unwritten.lastId + 1;
+
+        List<Message> queued = new ArrayList<>();
+        for (Message message : unwritten.messages) {
+            if (message.id < upTo) {
+                queued.add(message);
             }
+        }
+        if (queued.size() >= limit) {
+            return new ArrayList<>(queued.subList(queued.size() - limit, queued.size()));
+        }
+
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages " +
+                "WHERE room_id = ? AND id < ? ORDER BY id DESC LIMIT ?";
+
+        try {
+            List<Message> messages = read(getMessagesBeforeTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomId);
+                pstmt.setLong(2, Math.min(upTo, unwritten.firstId));
+                pstmt.setInt(3, limit - queued.size());
+
+                List<Message> stored = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        stored.add(readMessage(rs));
+                    }
+                }
+
+                // Newest first from the query, oldest first for the client
+                Collections.reverse(stored);
+                return stored;
+            });
+            messages.addAll(queued);
+            return messages;
+        } catch (SQLException e) {
+            Log.warn("db.getMessagesBefore_failed", e);
+            return new ArrayList<>();
+        }
+    }
+
+    // Up to limit messages of a room with ids above afterId, oldest first; like getMessagesBefore,
+    // the ones still queued come from memory and only older ones from the table
+    public List<Message> getMessagesAfter(String roomId, long afterId, int limit) {
+        Unwritten unwritten = unwritten(roomId);
+
+        List<Message> queued = new ArrayList<>();
+        for (Message message : unwritten.messages) {
+            if (message.id > afterId) {
+                queued.add(message);
+            }
+        }
+        if (afterId + 1 >= unwritten.firstId) {
+            return new ArrayList<>(queued.subList(0, Math.min(limit, queued.size())));
+        }
+
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages " +
+                "WHERE room_id = ? AND id > ? AND id < ? ORDER BY id LIMIT ?";
+
+        try {
+            List<Message> messages = read(getMessagesAfterTime, db -> {
+                PreparedStatement pstmt = db.prepare(sql);
+                pstmt.setString(1, roomId);
+                pstmt.setLong(2, afterId);
+                pstmt.setLong(3, unwritten.firstId);
+                pstmt.setInt(4, limit);
+
+                List<Message> stored = new ArrayList<>();
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        stored.add(readMessage(rs));
+                    }
+                }
+                return stored;
+            });
+            messages.addAll(queued.subList(0, Math.min(limit - messages.size(), queued.size())));
+            return messages;
         } catch (SQLException e) {
-            System.err.println("Error getting recent messages: " + e.getMessage());
+            Log.warn("db.getMessagesAfter_failed", e);
+            return new ArrayList<>();
         }
+    }
+
+    // Columns read by readMessage; timestamps are stored as UTC text and read back as epoch millis
+    private static final String MESSAGE_COLUMNS =
+            "id, room_id, username, content, CAST(strftime('%s', timestamp) AS INTEGER) * 1000 AS sent_at";
 
-        return messages;
+    private static Message readMessage(ResultSet rs) throws SQLException {
+        return new Message(rs.getLong("id"), rs.getString("room_id"), rs.getString("username"),
+                rs.getLong("sent_at"), rs.getString("content"), Message.Kind.CHAT);
     }
 
+    // Stop the background writer, flush every queued message, then close the connections
     public void close() {
+        pendingLock.lock();
         try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
+            closing = true;
+            messagesPending.signalAll();
+            spaceAvailable.signalAll();
+        } finally {
+            pendingLock.unlock();
+        }
+
+        if (messageWriter != null) {
+            try {
+                messageWriter.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!flushPendingMessages()) {
+            Log.error("db.messages_unwritten", null, "messages", pendingMessageCount());
+        }
+
+        // Readers still borrowed, e.g. by a history load during the shutdown drain, are closed
+        // when they come back
+        if (readers != null) {
+            readersClosed = true;
+            closeIdleReaders();
+        }
+
+        writeLock.lock();
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // A connection together with the statements prepared on it. Only the thread currently holding
+    // the connection uses its statements, so the cache needs no locking of its own.
+    private static class PooledConnection {
+        final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        // The statement for this SQL, compiled the first time it is asked for
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement pstmt = statements.get(sql);
+            if (pstmt == null) {
+                pstmt = connection.prepareStatement(sql);
+                statements.put(sql, pstmt);
+            } else {
+                pstmt.clearParameters();
+            }
+            return pstmt;
+        }
+
+        void close() {
+            try {
+                for (PreparedStatement pstmt : statements.values()) {
+                    pstmt.close();
+                }
+                statements.clear();
+                if (!connection.isClosed()) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                Log.warn("db.close_failed", e);
             }
-        } catch (SQLException e) {
-            System.err.println("Error closing database connection: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
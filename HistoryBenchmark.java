@@ -0,0 +1,82 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Measures how long loading a room's recent history, and a page of older history from a random
+// point in it, take as the messages table grows.
+// Usage: java HistoryBenchmark [rows...]   (default: 10000 100000 1000000)
+// Runs against a temporary database file that is deleted afterwards.
+public class HistoryBenchmark {
+    private static final int ROOMS = 100;
+    private static final int QUERIES = 2000;
+
+    public static void main(String[] args) throws IOException {
+        long[] sizes = { 10_000, 100_000, 1_000_000 };
+        if (args.length > 0) {
+            sizes = Arrays.stream(args).mapToLong(Long::parseLong).toArray();
+        }
+
+        File dbFile = File.createTempFile("history-benchmark", ".db");
+        DatabaseManager dbManager = new DatabaseManager(dbFile.getPath(), 1000, 50, 1);
+        try {
+            List<String> roomIds = new ArrayList<>();
+            for (int i = 0; i < ROOMS; i++) {
+                roomIds.add(dbManager.createRoom("bench-" + i, "public").getId());
+            }
+
+            Random random = new Random(42);
+            long rows = 0;
+            System.out.printf("%12s %12s %12s %12s %12s %12s%n", "rows", "avg (us)", "p50 (us)", "p99 (us)",
+                    "page p50", "page p99");
+
+            for (long size : sizes) {
+                while (rows < size) {
+                    String roomId = roomIds.get(random.nextInt(ROOMS));
+                    dbManager.queueMessage(roomId, "user" + random.nextInt(1000), "message " + rows);
+                    rows++;
+                }
+                dbManager.flushPendingMessages();
+
+                // Warm up the statement cache and the page cache before timing
+                for (int i = 0; i < QUERIES / 10; i++) {
+                    dbManager.getRecentMessages(roomIds.get(random.nextInt(ROOMS)), 20);
+                }
+
+                long[] nanos = new long[QUERIES];
+                for (int i = 0; i < QUERIES; i++) {
+                    String roomId = roomIds.get(random.nextInt(ROOMS));
+                    long start = System.nanoTime();
+                    dbManager.getRecentMessages(roomId, 20);
+                    nanos[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(nanos);
+
+                // Older pages, starting anywhere in the table
+                long[] pageNanos = new long[QUERIES];
+                for (int i = 0; i < QUERIES; i++) {
+                    String roomId = roomIds.get(random.nextInt(ROOMS));
+                    long cursor = 1 + (long) (random.nextDouble() * rows);
+                    long start = System.nanoTime();
+                    dbManager.getMessagesBefore(roomId, cursor, 50);
+                    pageNanos[i] = System.nanoTime() - start;
+                }
+                Arrays.sort(pageNanos);
+
+                System.out.printf("%12d %12.1f %12.1f %12.1f %12.1f %12.1f%n", rows,
+                        Arrays.stream(nanos).average().orElse(0) / 1000.0,
+                        nanos[QUERIES / 2] / 1000.0,
+                        nanos[QUERIES * 99 / 100] / 1000.0,
+                        pageNanos[QUERIES / 2] / 1000.0,
+                        pageNanos[QUERIES * 99 / 100] / 1000.0);
+            }
+        } finally {
+            dbManager.close();
+            for (String suffix : new String[] { "", "-wal", "-shm" }) {
+                new File(dbFile.getPath() + suffix).delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import java.util.Collections;
+import java.util.List;
+
+// A run of a room's history, oldest first, and the cursor for the page before it: the id of its
+// oldest message, which the client passes back to ask for older messages. The cursor is 0 when the
+// page is known to reach the start of the room.
+public class HistoryPage {
+    public static final HistoryPage EMPTY = new HistoryPage(Collections.emptyList(), 0);
+
+    public final List<Message> messages;
+    public final long cursor;
+
+    public HistoryPage(List<Message> messages, long cursor) {
+        this.messages = messages;
+        this.cursor = cursor;
+    }
+
+    // A page of up to limit messages; a short page is the start of the room
+    public static HistoryPage of(List<Message> messages, int limit) {
+        long cursor = !messages.isEmpty() && messages.size() >= limit ? messages.get(0).id : 0;
+        return new HistoryPage(messages, cursor);
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram of durations in nanoseconds with about 1.5% precision, after HdrHistogram: values below
+// 128 each have their own bucket, and every power of two above that is split into 64 buckets, so a
+// fixed 30KB covers everything from a nanosecond to centuries. Recording is lock-free, so any number
+// of threads can record into the same histogram.
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(58 * SUB_BUCKETS + 2 * SUB_BUCKETS);
+    private final LongAdder samples = new LongAdder();
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+        samples.increment();
+    }
+
+    public long count() {
+        return samples.sum();
+    }
+
+    // The value below which the given percentage of samples fall, rounded up to its bucket
+    public long percentile(double percent) {
+        long count = samples.sum();
+        if (count == 0) {
+            return 0;
+        }
+
+        long threshold = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return highestValueIn(i);
+            }
+        }
+        return highestValueIn(counts.length() - 1);
+    }
+
+    public String summary() {
+        return String.format("p50 %s p90 %s p99 %s p99.9 %s max %s (n=%d)", format(percentile(50)),
+                format(percentile(90)), format(percentile(99)), format(percentile(99.9)),
+                format(percentile(100)), samples.sum());
+    }
+
+    // Percentile distribution, one line per step
+    public void print() {
+        for (double percent : new double[] { 50, 75, 90, 95, 99, 99.9, 99.99, 100 }) {
+            System.out.printf("%8.2f%% %12s%n", percent, format(percentile(percent)));
+        }
+    }
+
+    // A duration in the largest unit that keeps three significant digits
+    public static String format(long nanos) {
+        if (nanos >= 10_000_000) {
+            return (nanos / 1_000_000) + "ms";
+        }
+        if (nanos >= 10_000) {
+            return (nanos / 1000) + "us";
+        }
+        return nanos + "ns";
+    }
+
+    private static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index - (long) shift * SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,406 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator: logs in many simulated users with the same handshake as ClientUI, spreads
+// them over a set of rooms, and has each send chat messages at a steady rate, optionally dropping and
+// reconnecting every so often. Every message carries the time it was sent, so each copy received back
+// gives one end-to-end latency sample; percentiles and throughput are printed as the run goes and at
+// the end. Sender and receivers are the same process, so the server should be on the same machine.
+// Usage: java LoadGenerator [--host=localhost] [--port=5000] [--users=1000] [--rooms=10] [--rate=1]
+//                           [--duration=60] [--session=0] [--login=anonymous|register]
+//                           [--protocol=binary|text] [--report-interval=5]
+// rate is messages per second per user; session is the mean seconds a user stays connected before
+// reconnecting, 0 to stay for the whole run.
+public class LoadGenerator {
+    // Marks the chat messages this generator sent; followed by System.nanoTime() at sending
+    private static final String MARKER = "load:";
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final int rooms;
+    private final double rate;
+    private final int durationSeconds;
+    private final double sessionSeconds;
+    private final boolean register;
+    private final boolean binary;
+    private final int reportInterval;
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService connections = createConnectionExecutor();
+    private volatile boolean running = true;
+
+    // Counters since the start of the run
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+
+    // Latencies since the start of the run, and since the last report
+    private final LatencyHistogram total = new LatencyHistogram();
+    private volatile LatencyHistogram interval = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.err.println("Ignoring unrecognized argument: " + arg);
+                continue;
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private LoadGenerator(Map<String, String> options) {
+        this.host = options.getOrDefault("host", "localhost");
+        this.port = Integer.parseInt(options.getOrDefault("port", "5000"));
+        this.users = Math.max(1, Integer.parseInt(options.getOrDefault("users", "1000")));
+        this.rooms = Math.max(1, Integer.parseInt(options.getOrDefault("rooms", "10")));
+        this.rate = Math.max(0, Double.parseDouble(options.getOrDefault("rate", "1")));
+        this.durationSeconds = Math.max(1, Integer.parseInt(options.getOrDefault("duration", "60")));
+        this.sessionSeconds = Math.max(0, Double.parseDouble(options.getOrDefault("session", "0")));
+        this.register = "register".equalsIgnoreCase(options.getOrDefault("login", "anonymous"));
+        this.binary = !"text".equalsIgnoreCase(options.getOrDefault("protocol", "binary"));
+        this.reportInterval = Math.max(1, Integer.parseInt(options.getOrDefault("report-interval", "5")));
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "load-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private void run() throws Exception {
+        System.out.println("Load: " + users + " users in " + rooms + " rooms, " + rate + " messages/s each, "
+                + (binary ? "binary" : "text") + " protocol, " + durationSeconds + "s against " + host + ":" + port);
+
+        createRooms();
+
+        for (int i = 0; i < users; i++) {
+            int index = i;
+            connections.execute(() -> new SimulatedUser(index).run());
+        }
+
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (int elapsed = reportInterval; elapsed <= durationSeconds; elapsed += reportInterval) {
+            TimeUnit.SECONDS.sleep(reportInterval);
+
+            LatencyHistogram recent = interval;
+            interval = new LatencyHistogram();
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+            System.out.printf("[%4ds] %6d logins %5d failed %5d dropped | sent %8.0f/s received %9.0f/s | %s%n",
+                    elapsed, logins.sum(), loginFailures.sum(), disconnects.sum(),
+                    (sentNow - lastSent) / (double) reportInterval,
+                    (receivedNow - lastReceived) / (double) reportInterval, recent.summary());
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+        }
+
+        running = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        connections.shutdownNow();
+        scheduler.shutdownNow();
+
+        System.out.println();
+        System.out.printf("Sent %d messages (%.0f/s), received %d copies (%.0f/s)%n", sent.sum(),
+                sent.sum() / seconds, received.sum(), received.sum() / seconds);
+        System.out.println("End-to-end latency: " + total.summary());
+        total.print();
+    }
+
+    // Create the rooms up front on one connection, so the users can join them straight away. The
+    // server handles a connection's requests in order, so once the reply to /help arrives every
+    // room exists.
+    private void createRooms() throws IOException {
+        Connection setup = new Connection();
+        if (setup.login("ANONYMOUS", null, null) != WireCodec.LoginResult.LOGIN_SUCCESS) {
+            throw new IOException("Could not log in to create the rooms");
+        }
+
+        for (int room = 0; room < rooms; room++) {
+            setup.command("/create " + roomName(room));
+        }
+        setup.command("/help");
+        while (true) {
+            String text = setup.read();
+            if (text == null) {
+                throw new EOFException("Server closed the connection while creating rooms");
+            }
+            if (text.startsWith("Available commands:")) {
+                break;
+            }
+        }
+
+        setup.command("/exit");
+        setup.close();
+    }
+
+    private static String roomName(int room) {
+        return "load-" + room;
+    }
+
+    // One user: logs in, joins its room and chats until its session ends, then starts over
+    private class SimulatedUser {
+        private final int index;
+        private final String username;
+
+        SimulatedUser(int index) {
+            this.index = index;
+            this.username = "load-user-" + index;
+        }
+
+        void run() {
+            while (running) {
+                Connection connection = null;
+                ScheduledFuture<?> chatter = null;
+                ScheduledFuture<?> leave = null;
+                try {
+                    connection = new Connection();
+                    WireCodec.LoginResult result = register
+                            ? connection.login("LOGIN", username, "load-password")
+                            : connection.login("ANONYMOUS", null, null);
+                    if (result == WireCodec.LoginResult.LOGIN_FAILED && register) {
+                        connection.close();
+                        connection = new Connection();
+                        result = connection.login("REGISTER", username, "load-password");
+                    }
+
+                    if (result == WireCodec.LoginResult.RETRY_AFTER) {
+                        connection.close();
+                        TimeUnit.SECONDS.sleep(Math.max(1, connection.retryAfter));
+                        continue;
+                    }
+                    if (result != WireCodec.LoginResult.LOGIN_SUCCESS
+                            && result != WireCodec.LoginResult.REGISTER_SUCCESS) {
+                        loginFailures.increment();
+                        connection.close();
+                        TimeUnit.SECONDS.sleep(1);
+                        continue;
+                    }
+                    logins.increment();
+
+                    connection.command("/join " + roomName(index % rooms));
+
+                    Connection current = connection;
+                    if (rate > 0) {
+                        long period = (long) (TimeUnit.SECONDS.toMicros(1) / rate);
+                        long delay = ThreadLocalRandom.current().nextLong(Math.max(1, period));
+                        chatter = scheduler.scheduleAtFixedRate(() -> current.chat(), delay, period,
+                                TimeUnit.MICROSECONDS);
+                    }
+                    if (sessionSeconds > 0) {
+                        // Between half and one and a half times the mean, so reconnects are spread out
+                        long lifetime = (long) (sessionSeconds * 1000 * (0.5 + ThreadLocalRandom.current().nextDouble()));
+                        leave = scheduler.schedule(() -> current.leave(), lifetime, TimeUnit.MILLISECONDS);
+                    }
+
+                    String text;
+                    while ((text = connection.read()) != null) {
+                        int marker = text.indexOf(MARKER);
+                        if (marker >= 0) {
+                            record(text.substring(marker + MARKER.length()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // Dropped; start again
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (chatter != null) {
+                        chatter.cancel(false);
+                    }
+                    if (leave != null) {
+                        leave.cancel(false);
+                    }
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+
+                if (running) {
+                    disconnects.increment();
+                }
+            }
+        }
+
+        private void record(String sentAt) {
+            try {
+                long nanos = System.nanoTime() - Long.parseLong(sentAt.trim());
+                total.record(nanos);
+                interval.record(nanos);
+                received.increment();
+            } catch (NumberFormatException e) {
+                // Someone else's message that happens to contain the marker
+            }
+        }
+    }
+
+    // A connection to the server in either protocol, reading back only what the generator needs
+    private class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final BufferedReader reader;
+
+        // Seconds the server asked us to wait after RETRY_AFTER
+        int retryAfter;
+
+        // Text protocol: inside a history block, whose lines are not live messages
+        private boolean inHistory;
+
+        Connection() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+            reader = binary ? null : new BufferedReader(new InputStreamReader(in, ClientWriter.CHARSET));
+        }
+
+        // The login handshake from ClientUI.connectToServer
+        WireCodec.LoginResult login(String loginType, String username, String password) throws IOException {
+            if (binary) {
+                int opcode = loginType.equals("LOGIN") ? BinaryCodec.LOGIN
+                        : loginType.equals("REGISTER") ? BinaryCodec.REGISTER : BinaryCodec.ANONYMOUS;
+                out.write(BinaryCodec.MAGIC);
+                write(BinaryCodec.login(opcode, username, password));
+
+                BinaryCodec.Frame reply = BinaryCodec.readFrame(in, Integer.MAX_VALUE);
+                if (reply == null || reply.opcode != BinaryCodec.LOGIN_RESULT) {
+                    throw new EOFException("No login reply");
+                }
+                WireCodec.LoginResult result = WireCodec.LoginResult.values()[reply.readByte()];
+                if (result == WireCodec.LoginResult.RETRY_AFTER) {
+                    retryAfter = reply.readVarint();
+                }
+                return result;
+            }
+
+            StringBuilder lines = new StringBuilder(loginType).append('\n');
+            if (!loginType.equals("ANONYMOUS")) {
+                lines.append(username).append('\n').append(password).append('\n');
+            }
+            write(lines.toString().getBytes(ClientWriter.CHARSET));
+
+            String response = reader.readLine();
+            if (response == null) {
+                throw new EOFException("No login reply");
+            }
+            WireCodec.LoginResult result = WireCodec.LoginResult.valueOf(response.trim());
+            if (result == WireCodec.LoginResult.RETRY_AFTER) {
+                String seconds = reader.readLine();
+                retryAfter = seconds != null ? Integer.parseInt(seconds.trim()) : 1;
+            } else if (loginType.equals("ANONYMOUS") && result == WireCodec.LoginResult.LOGIN_SUCCESS) {
+                // The generated name
+                reader.readLine();
+            }
+            return result;
+        }
+
+        void command(String line) throws IOException {
+            write(binary ? BinaryCodec.command(line) : ClientWriter.encode(line));
+        }
+
+        // Send one timed chat message; called on the scheduler
+        void chat() {
+            String text = MARKER + System.nanoTime();
+            try {
+                write(binary ? BinaryCodec.message(text) : ClientWriter.encode(text));
+                sent.increment();
+            } catch (IOException e) {
+                // The reader notices the connection is gone
+            }
+        }
+
+        // End the session the way a user closing the window does; the reader then sees the connection close
+        void leave() {
+            try {
+                command("/exit");
+            } catch (IOException e) {
+                // Already gone
+            }
+            close();
+        }
+
+        // The text of the next chat message or notice, or null once the connection closes. In the
+        // binary protocol only chat and notices are decoded; in the text protocol history lines are
+        // skipped so old messages aren't counted again.
+        String read() throws IOException {
+            if (binary) {
+                BinaryCodec.Frame frame;
+                while ((frame = BinaryCodec.readFrame(in, Integer.MAX_VALUE)) != null) {
+                    if (frame.opcode == BinaryCodec.CHAT) {
+                        frame.readVarint(); // Room
+                        frame.readString(); // Sender
+                        return frame.readString();
+                    }
+                    if (frame.opcode == BinaryCodec.NOTICE) {
+                        return frame.readString();
+                    }
+                }
+                return null;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("CHAT_HISTORY_BEGIN") || line.startsWith("OLDER_HISTORY_BEGIN")) {
+                    inHistory = true;
+                } else if (line.equals("CHAT_HISTORY_END") || line.equals("OLDER_HISTORY_END")) {
+                    inHistory = false;
+                } else if (!inHistory) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        private synchronized void write(byte[] frame) throws IOException {
+            out.write(frame);
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    // Virtual threads when available (JDK 21+), as thousands of users each block on their own socket
+    private static ExecutorService createConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "load-user");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Structured, asynchronous server log. A call records an event name and key/value fields into a
+// lock-free ring buffer and returns; one background thread formats the entries as
+// "time LEVEL event key=value ..." lines and writes them, debug and info to stdout and warnings and
+// errors to stderr. Nothing a handler thread does here waits on the console: when the buffer is full
+// the entry is dropped and counted. Levels can be sampled, keeping only a fraction of their entries,
+// and repeats of the same warning or error beyond a limit per second are suppressed and counted on
+// the next one that gets through.
+public final class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    // Entries the buffer holds; a power of two
+    private static final int CAPACITY = 16384;
+    private static final int MASK = CAPACITY - 1;
+
+    // Longest the writer sleeps when idle if no one wakes it
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+
+    // Next slot to claim, and next slot for the writer to take; head - tail entries are waiting
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail;
+
+    // Set while the writer is parked, so a producer knows to wake it
+    private static volatile boolean idle;
+
+    private static final LongAdder dropped = new LongAdder();
+
+    private static volatile Level threshold = Level.INFO;
+    private static final double[] sampleRates = { 1, 1, 1, 1 };
+    private static volatile int repeatLimit = 10;
+    private static final ConcurrentHashMap<String, RepeatLimiter> limiters = new ConcurrentHashMap<>();
+
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+    private static final Thread writer;
+
+    static {
+        writer = new Thread(Log::writeEntries, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Metrics.gauge("log.dropped", dropped::sum);
+    }
+
+    private Log() {
+    }
+
+    // Lowest level written; the fraction of each level's entries kept, indexed by Level.ordinal();
+    // and how many times per second the same warning or error is written before it is suppressed
+    public static void configure(Level level, double[] sampling, int repeatsPerSecond) {
+        threshold = level;
+        for (int i = 0; i < sampleRates.length && i < sampling.length; i++) {
+            sampleRates[i] = Math.max(0, Math.min(1, sampling[i]));
+        }
+        repeatLimit = Math.max(1, repeatsPerSecond);
+    }
+
+    // fields are alternating keys and values
+    public static void debug(String event, Object... fields) {
+        log(Level.DEBUG, event, null, fields);
+    }
+
+    public static void info(String event, Object... fields) {
+        log(Level.INFO, event, null, fields);
+    }
+
+    public static void warn(String event, Object... fields) {
+        log(Level.WARN, event, null, fields);
+    }
+
+    // The error is written as a field; use error() when the stack trace is wanted
+    public static void warn(String event, Throwable error, Object... fields) {
+        log(Level.WARN, event, error, fields);
+    }
+
+    // Written with the error's stack trace
+    public static void error(String event, Throwable error, Object... fields) {
+        log(Level.ERROR, event, error, fields);
+    }
+
+    // Wait up to timeoutMillis for everything logged so far to be written, e.g. before exiting
+    public static void flush(long timeoutMillis) {
+        long target = head.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        LockSupport.unpark(writer);
+        while (tail < target && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        out.flush();
+        err.flush();
+    }
+
+    private static void log(Level level, String event, Throwable error, Object[] fields) {
+        if (level.ordinal() < threshold.ordinal()) {
+            return;
+        }
+
+        double rate = sampleRates[level.ordinal()];
+        if (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate) {
+            return;
+        }
+
+        long suppressed = 0;
+        if (level.ordinal() >= Level.WARN.ordinal()) {
+            RepeatLimiter limiter = limiters.get(event);
+            if (limiter == null) {
+                limiter = limiters.computeIfAbsent(event, e -> new RepeatLimiter());
+            }
+            if (!limiter.allow()) {
+                return;
+            }
+            suppressed = limiter.suppressed.getAndSet(0);
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), level, event, error, fields, suppressed);
+        while (true) {
+            long claimed = head.get();
+            if (claimed - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+            if (head.compareAndSet(claimed, claimed + 1)) {
+                slots.set((int) (claimed & MASK), entry);
+                break;
+            }
+        }
+
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeEntries() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+
+        while (true) {
+            long next = tail;
+            int index = (int) (next & MASK);
+            Entry entry = slots.get(index);
+
+            if (entry == null) {
+                if (next == head.get()) {
+                    // Caught up: say what was dropped, push the output out and wait for more
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        err.println(Instant.now() + " WARN  log.dropped count=" + (drops - reportedDrops));
+                        reportedDrops = drops;
+                    }
+                    out.flush();
+                    err.flush();
+
+                    idle = true;
+                    if (next == head.get()) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                } else {
+                    // Claimed but not yet filled in
+                    Thread.onSpinWait();
+                }
+                continue;
+            }
+
+            slots.set(index, null);
+            try {
+                line.setLength(0);
+                entry.format(line);
+                PrintStream stream = entry.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+                stream.println(line);
+                if (entry.level == Level.ERROR && entry.error != null) {
+                    entry.error.printStackTrace(stream);
+                }
+            } catch (RuntimeException e) {
+                // A field whose toString failed; lose the entry, not the writer
+                err.println(Instant.now() + " WARN  log.unformattable event=" + entry.event + " error=" + e);
+            }
+            tail = next + 1;
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final Level level;
+        final String event;
+        final Throwable error;
+        final Object[] fields;
+        final long suppressed;
+
+        Entry(long time, Level level, String event, Throwable error, Object[] fields, long suppressed) {
+            this.time = time;
+            this.level = level;
+            this.event = event;
+            this.error = error;
+            this.fields = fields;
+            this.suppressed = suppressed;
+        }
+
+        void format(StringBuilder line) {
+            line.append(Instant.ofEpochMilli(time)).append(' ').append(level);
+            for (int i = level.name().length(); i < 5; i++) {
+                line.append(' ');
+            }
+            line.append(' ').append(event);
+
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                appendField(line, String.valueOf(fields[i]), fields[i + 1]);
+            }
+            if (error != null) {
+                appendField(line, "error", error);
+            }
+            if (suppressed > 0) {
+                appendField(line, "suppressed", suppressed);
+            }
+        }
+
+        // key=value, quoting values with spaces, quotes or equals signs
+        private static void appendField(StringBuilder line, String key, Object value) {
+            String text = String.valueOf(value);
+            line.append(' ').append(key).append('=');
+
+            boolean quote = text.isEmpty();
+            for (int i = 0; i < text.length() && !quote; i++) {
+                char c = text.charAt(i);
+                quote = c <= ' ' || c == '"' || c == '=';
+            }
+            if (!quote) {
+                line.append(text);
+                return;
+            }
+
+            line.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c == '\n') {
+                    line.append("\\n");
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+
+    // Lets an event through at most repeatLimit times per second, counting the rest
+    private static class RepeatLimiter {
+        volatile long windowStart = System.nanoTime();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong suppressed = new AtomicLong();
+
+        boolean allow() {
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                // Racing resets only let a few extra through
+                windowStart = now;
+                count.set(0);
+            }
+            if (count.incrementAndGet() <= repeatLimit) {
+                return true;
+            }
+            suppressed.incrementAndGet();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A cluster bus between nodes in the same JVM, for exercising cluster routing without sockets.
+// Every node joined to one Network can reach the others; each node receives on its own thread, so
+// frames arrive in order just as they do over TcpBus.
+public class LoopbackBus implements ClusterBus {
+    // The nodes that can reach each other
+    public static class Network {
+        private final ConcurrentHashMap<String, LoopbackBus> nodes = new ConcurrentHashMap<>();
+
+        public LoopbackBus join(String node) {
+            LoopbackBus bus = new LoopbackBus(this, node);
+            if (nodes.putIfAbsent(node, bus) != null) {
+                throw new IllegalArgumentException("Node " + node + " has already joined");
+            }
+            return bus;
+        }
+    }
+
+    private final Network network;
+    private final String node;
+    private final ExecutorService receiver;
+    private volatile Handler handler;
+
+    private LoopbackBus(Network network, String node) {
+        this.network = network;
+        this.node = node;
+        this.receiver = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loopback-bus-" + node);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void start(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void send(String to, byte[] frame) {
+        LoopbackBus target = network.nodes.get(to);
+        if (target == null || target.handler == null) {
+            return;
+        }
+
+        target.receiver.execute(() -> {
+            try {
+                target.handler.onFrame(node, BinaryCodec.readFrame(new ByteArrayInputStream(frame), frame.length));
+            } catch (IOException | RuntimeException e) {
+                Log.error("cluster.frame_failed", e, "from", node);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        network.nodes.remove(node, this);
+        receiver.shutdown();
+    }
+}
@@ -0,0 +1,41 @@
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// A chat message as it moves through the server: sent by a client, queued for the database, kept
+// in a room's history and encoded for each protocol. It is made once, when it is queued and given
+// its id, and never changes; only the codecs turn it into text.
+public final class Message {
+    public enum Kind {
+        // Sent by a user
+        CHAT,
+        // Sent by the server itself; has no sender
+        SYSTEM
+    }
+
+    public final long id;
+    public final String roomId;
+    public final String sender;
+    // Milliseconds since the epoch
+    public final long timestamp;
+    public final String body;
+    public final Kind kind;
+
+    public Message(long id, String roomId, String sender, long timestamp, String body, Kind kind) {
+        this.id = id;
+        this.roomId = roomId;
+        this.sender = sender;
+        this.timestamp = timestamp;
+        this.body = body;
+        this.kind = kind;
+    }
+
+    // As shown in a room's history: [timestamp] sender: body, with the time in UTC to the second
+    public String toHistoryLine() {
+        LocalDateTime utc = LocalDateTime.ofEpochSecond(Math.floorDiv(timestamp, 1000L), 0, ZoneOffset.UTC);
+        String time = Timestamp.valueOf(utc).toString();
+        return kind == Kind.SYSTEM
+                ? "[" + time + "] " + body
+                : "[" + time + "] " + sender + ": " + body;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Recent chat history served from memory. A room's history is loaded from the database the first
+// time someone joins it and kept current from then on by every message sent to it, so joins never
+// query the database while the room stays warm. Only the most recently used rooms keep their
+// history; the rest are unloaded and reloaded on the next join.
+public class MessageHistory {
+    private final DatabaseManager dbManager;
+    private final int maxWarmRooms;
+
+    // Rooms whose history is loaded, least recently used first
+    private final LinkedHashMap<String, Room> warmRooms = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock warmRoomsLock = new ReentrantLock();
+
+    public MessageHistory(DatabaseManager dbManager, int maxWarmRooms) {
+        this.dbManager = dbManager;
+        this.maxWarmRooms = Math.max(1, maxWarmRooms);
+    }
+
+    // Add a chat message to the room's history and queue it for the database. Both happen under the
+    // room's history lock, so a concurrent load sees the message either in the database or not at
+    // all, and in the latter case the message is appended after the load. Returns the message.
+    public Message record(Room room, String username, String content) {
+        long sentAt = System.currentTimeMillis();
+
+        ReentrantLock lock = room.getHistoryLock();
+        lock.lock();
+        try {
+            Message message = dbManager.queueMessage(room.getId(), username, content, sentAt);
+            if (room.isHistoryLoaded()) {
+                room.addMessage(message);
+                touch(room);
+            }
+            return message;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The last limit messages of a room, oldest first; limit is at most Room.HISTORY_SIZE
+    public HistoryPage recent(Room room, int limit) {
+        HistoryPage page;
+        boolean loaded = false;
+
+        ReentrantLock lock = room.getHistoryLock();
+        lock.lock();
+        try {
+            if (!room.isHistoryLoaded()) {
+                // Flushes queued messages first, and no new ones can be queued for this room meanwhile
+                room.loadHistory(dbManager.getMessagesBefore(room.getId(), 0, Room.HISTORY_SIZE));
+                loaded = true;
+            }
+
+            // The ring is only short of limit when the room has no older messages
+            page = HistoryPage.of(room.getMessages(limit), limit);
+            touch(room);
+        } finally {
+            lock.unlock();
+        }
+
+        // Unload outside this room's lock so two rooms' locks are never held at once; a caller that
+        // still holds it leaves that to the next load
+        if (loaded && !lock.isHeldByCurrentThread()) {
+            evictColdRooms();
+        }
+        return page;
+    }
+
+    private void touch(Room room) {
+        warmRoomsLock.lock();
+        try {
+            warmRooms.put(room.getId(), room);
+        } finally {
+            warmRoomsLock.unlock();
+        }
+    }
+
+    private void evictColdRooms() {
+        List<Room> evicted = new ArrayList<>();
+
+        warmRoomsLock.lock();
+        try {
+            Iterator<Room> eldest = warmRooms.values().iterator();
+            while (warmRooms.size() > maxWarmRooms && eldest.hasNext()) {
+                evicted.add(eldest.next());
+                eldest.remove();
+            }
+        } finally {
+            warmRoomsLock.unlock();
+        }
+
+        for (Room room : evicted) {
+            ReentrantLock lock = room.getHistoryLock();
+            lock.lock();
+            try {
+                room.unloadHistory();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Server-wide counters, gauges and latency histograms, cheap enough to update on every message:
+// counters are striped LongAdders and histograms record without locking, so threads never contend
+// on a shared value. Hot paths look their metric up once and keep it in a field; per-room metrics
+// come from a family keyed by room name. report() renders everything for /stats and the HTTP endpoint.
+public class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+    // Counters of the same thing for each of a set of keys, such as messages per room
+    public static class Family {
+        private final ConcurrentHashMap<String, LongAdder> members = new ConcurrentHashMap<>();
+
+        public LongAdder get(String key) {
+            LongAdder counter = members.get(key);
+            return counter != null ? counter : members.computeIfAbsent(key, k -> new LongAdder());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    // Durations in nanoseconds
+    public static LatencyHistogram timer(String name) {
+        LatencyHistogram timer = timers.get(name);
+        return timer != null ? timer : timers.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    // A value read when the metrics are reported, such as the number of connected clients
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static Family family(String name) {
+        return families.computeIfAbsent(name, n -> new Family());
+    }
+
+    // One line per metric, sorted by name
+    public static List<String> report() {
+        Map<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            lines.put(counter.getKey(), String.valueOf(counter.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            lines.put(gauge.getKey(), String.valueOf(gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, Family> family : families.entrySet()) {
+            for (Map.Entry<String, LongAdder> member : family.getValue().members.entrySet()) {
+                lines.put(family.getKey() + "[" + member.getKey() + "]", String.valueOf(member.getValue().sum()));
+            }
+        }
+        for (Map.Entry<String, LatencyHistogram> timer : timers.entrySet()) {
+            lines.put(timer.getKey(), timer.getValue().summary());
+        }
+
+        List<String> report = new ArrayList<>(lines.size());
+        for (Map.Entry<String, String> line : lines.entrySet()) {
+            report.add(line.getKey() + " " + line.getValue());
+        }
+        return report;
+    }
+}
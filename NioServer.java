@@ -0,0 +1,640 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Non-blocking server mode: one acceptor plus a small fixed pool of selector threads
+// that run the same login/command protocol as the thread-per-client mode. The selector threads
+// only read, decode and write; logins and commands, which may wait on the database, run on a pool
+// of worker threads, in order for each connection.
+public class NioServer {
+    // Longest line a client may send before it is disconnected
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    // Commands a connection may have waiting for a worker before reading from it pauses
+    private static final int MAX_QUEUED_COMMANDS = 64;
+
+    // Runs the sessions' logins and commands
+    private static ExecutorService workers;
+
+    // Sessions of all open connections handled by the reactors, keyed by their socket adaptor
+    private static final ConcurrentHashMap<Socket, Session> sessions = new ConcurrentHashMap<>();
+
+    // Shared with the blocking accept loop through the metrics registry
+    private static final LongAdder accepted = Metrics.counter("connections.accepted");
+
+    private final ServerConfig config;
+    private final Reactor[] reactors;
+
+    public NioServer(ServerConfig config) {
+        this.config = config;
+        this.reactors = new Reactor[config.getReactorThreads()];
+    }
+
+    // Accept connections on the calling thread and hand them to the reactors round-robin
+    public void run() throws IOException {
+        workers = Executors.newFixedThreadPool(config.getWorkerThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "nio-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            Thread thread = new Thread(reactors[i], "reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(config.getPort()), config.getAcceptBacklog());
+            Server.installShutdownHook(server);
+
+            Log.info("server.started", "port", config.getPort(), "mode", "nio", "reactors", reactors.length);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    if (Server.isShuttingDown()) {
+                        return;
+                    }
+                    throw e;
+                }
+                Socket socket = channel.socket();
+                Log.info("connection.accepted", "address", socket.getRemoteSocketAddress());
+                accepted.increment();
+
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    Log.warn("connection.configure_failed", e);
+                    channel.close();
+                    continue;
+                }
+
+                Reactor reactor = reactors[next];
+                next = (next + 1) % reactors.length;
+
+                Session session = new Session(channel, reactor, config, Server.admit(socket));
+                sessions.put(socket, session);
+                reactor.register(session);
+            }
+        }
+    }
+
+    // Close every open connection on its reactor, e.g. the clients still connected when the shutdown
+    // drain runs out of time, then let the workers finish their disconnects; returns once they have,
+    // or after a few seconds
+    static void closeSessions() {
+        for (Session session : sessions.values()) {
+            session.reactor.requestClose(session);
+        }
+
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (!sessions.isEmpty() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+
+            if (workers != null) {
+                workers.shutdown();
+                if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                    Log.warn("server.drain_timed_out", "workers_running", true);
+                    workers.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Close a connection's session on its own reactor, e.g. one a resumed session has replaced, so
+    // the session and its key are let go like any other closed connection; does nothing for a
+    // connection the reactors don't handle
+    static void closeSession(Socket socket) {
+        Session session = sessions.get(socket);
+        if (session != null) {
+            session.reactor.requestClose(session);
+        }
+    }
+
+    // A login or command run on a worker
+    private interface Command {
+        void run() throws IOException;
+    }
+
+    // Runs one connection's tasks on the worker pool one at a time, in the order they were added
+    private static class CommandQueue {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        // Tasks added and not yet finished, including the one running
+        private final AtomicInteger pending = new AtomicInteger();
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    workers.execute(this::runTasks);
+                } catch (RejectedExecutionException e) {
+                    // Shut down after the drain; nothing is left to run it for
+                }
+            }
+        }
+
+        int pending() {
+            return pending.get();
+        }
+
+        private void runTasks() {
+            do {
+                tasks.poll().run();
+            } while (pending.decrementAndGet() > 0);
+        }
+    }
+
+    // Selector loop owning a subset of the connections
+    private static class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Session> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Session> pendingCloses = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+        // Sessions still logging in, oldest first; they all get the same timeout, so this is also
+        // deadline order. Reactor thread only.
+        private final ArrayDeque<Session> handshakes = new ArrayDeque<>();
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Session session) {
+            pendingRegistrations.add(session);
+            selector.wakeup();
+        }
+
+        void requestWrite(Session session) {
+            pendingWrites.add(session);
+            selector.wakeup();
+        }
+
+        void requestClose(Session session) {
+            pendingCloses.add(session);
+            selector.wakeup();
+        }
+
+        // Run a task on the reactor thread
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(expireHandshakes());
+                } catch (IOException e) {
+                    Log.error("reactor.select_failed", e);
+                    return;
+                }
+
+                Session session;
+                while ((session = pendingRegistrations.poll()) != null) {
+                    try {
+                        session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+                        handshakes.add(session);
+                    } catch (ClosedChannelException e) {
+                        session.close();
+                    }
+                }
+
+                while ((session = pendingWrites.poll()) != null) {
+                    if (session.key != null && session.key.isValid()) {
+                        session.key.interestOps(session.readInterest() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                while ((session = pendingCloses.poll()) != null) {
+                    session.close();
+                }
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Session ready = (Session) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            ready.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ready.onReadable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        ready.close();
+                    } catch (RuntimeException e) {
+                        // Never let one connection take down the reactor
+                        Log.error("connection.error", e);
+                        ready.close();
+                    }
+                }
+            }
+        }
+
+        // Close sessions that did not log in in time; returns the milliseconds until the next
+        // deadline, or 0 if no session is logging in
+        private long expireHandshakes() {
+            long now = System.nanoTime();
+            Session session;
+            while ((session = handshakes.peek()) != null) {
+                if (session.loggedIn || session.closed.get()) {
+                    handshakes.poll();
+                    continue;
+                }
+
+                long remaining = session.handshakeDeadline - now;
+                if (remaining > 0) {
+                    return TimeUnit.NANOSECONDS.toMillis(remaining) + 1;
+                }
+
+                handshakes.poll();
+                Log.info("login.timed_out", "address", session.socket.getRemoteSocketAddress());
+                session.close();
+            }
+            return 0;
+        }
+    }
+
+    // State of one non-blocking connection: line or frame decoding, login progress and queued output
+    private static class Session implements ClientWriter.Transport {
+        final SocketChannel channel;
+        final Socket socket;
+        final Reactor reactor;
+        final ClientWriter writer;
+        SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        // Frame partially written when the socket buffer filled up
+        private ByteBuffer pendingWrite;
+
+        // Set once the client has sent the binary preamble; text clients never get one
+        private BinaryCodec.FrameDecoder frameDecoder;
+        private boolean protocolChosen;
+        private int magicMatched;
+
+        // Login handshake lines received so far
+        private final List<String> handshake = new ArrayList<>(3);
+        private boolean loggedIn;
+        private boolean rejected;
+
+        // Set while the login is carried out off the reactor; reading pauses until it is
+        private boolean loginPending;
+
+        // This connection's logins, commands and disconnect, run in order off the reactor
+        private final CommandQueue commands = new CommandQueue();
+
+        // Set while MAX_QUEUED_COMMANDS are waiting; reading pauses until the workers catch up.
+        // Written by the reactor, read by the workers.
+        private volatile boolean inputPaused;
+
+        // When the session is closed if it has not logged in
+        final long handshakeDeadline;
+
+        // Seconds to tell the client to wait before retrying, if admission control turned it away
+        private final int retryAfter;
+
+        Session(SocketChannel channel, Reactor reactor, ServerConfig config, int retryAfter) {
+            this.channel = channel;
+            this.socket = channel.socket();
+            this.reactor = reactor;
+            this.retryAfter = retryAfter;
+            this.handshakeDeadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(config.getHandshakeTimeoutMillis());
+            this.writer = new ClientWriter(config.getOutboundQueueCapacity(), config.getOverflowPolicy());
+            this.writer.setTransport(this);
+        }
+
+        void onReadable() throws IOException {
+            if (loginPending || inputPaused) {
+                // readBuffer still holds input for after the login, or for when the workers catch up
+                return;
+            }
+
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            if (!protocolChosen && !readPreamble()) {
+                close();
+                return;
+            }
+
+            if (retryAfter > 0) {
+                // Not admitted; answer in the client's protocol and ignore anything else it sends
+                if (protocolChosen && !rejected) {
+                    rejected = true;
+                    writer.send(frameDecoder != null
+                            ? BinaryCodec.INSTANCE.retryAfter(retryAfter)
+                            : TextCodec.INSTANCE.retryAfter(retryAfter));
+                    writer.close();
+                }
+                return;
+            }
+
+            processInput();
+        }
+
+        // Decode what is left in readBuffer; stops early when a login starts or reading pauses,
+        // leaving the rest for when it carries on
+        private void processInput() throws IOException {
+            if (frameDecoder != null) {
+                BinaryCodec.Frame frame;
+                while (channel.isOpen() && !loginPending && !inputPaused
+                        && (frame = frameDecoder.next(readBuffer)) != null) {
+                    onFrame(frame);
+                }
+            } else {
+                readLines();
+            }
+
+            if (!channel.isOpen()) {
+                close();
+            }
+        }
+
+        // OP_READ unless reading is paused for a login or for the workers
+        int readInterest() {
+            return loginPending || inputPaused ? 0 : SelectionKey.OP_READ;
+        }
+
+        // Carry on reading after a login has finished or the workers have caught up
+        private void resumeInput() {
+            if (closed.get() || loginPending) {
+                return;
+            }
+
+            inputPaused = false;
+            try {
+                processInput();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (key.isValid()) {
+                key.interestOps(readInterest() | (key.interestOps() & SelectionKey.OP_WRITE));
+            }
+        }
+
+        // Run a command on a worker after the ones before it, pausing reading when too many wait
+        private void dispatch(Command command) {
+            // Runs even if the connection closes first: the disconnect is queued behind it, so what
+            // the client sent before going away still counts
+            commands.execute(() -> {
+                try {
+                    command.run();
+                } catch (IOException e) {
+                    reactor.requestClose(this);
+                } catch (RuntimeException e) {
+                    Log.error("connection.error", e);
+                    reactor.requestClose(this);
+                }
+
+                // The last waiting command is done; start reading again if that was paused
+                if (inputPaused && commands.pending() == 1) {
+                    reactor.execute(this::resumeInput);
+                }
+            });
+
+            if (commands.pending() >= MAX_QUEUED_COMMANDS) {
+                inputPaused = true;
+                // The workers may have caught up before they could see the flag
+                inputPaused = commands.pending() >= MAX_QUEUED_COMMANDS;
+                if (inputPaused && key.isValid()) {
+                    // Stop the selector reporting input we are not going to read yet
+                    key.interestOps(readInterest() | (key.interestOps() & SelectionKey.OP_WRITE));
+                }
+            }
+        }
+
+        // Binary clients open with BinaryCodec.MAGIC, text clients with their login line; false if a
+        // client started the preamble but did not finish it correctly
+        private boolean readPreamble() {
+            while (!protocolChosen && readBuffer.hasRemaining()) {
+                if (magicMatched == 0 && readBuffer.get(readBuffer.position()) != BinaryCodec.MAGIC[0]) {
+                    // Text client; the byte is part of the first line
+                    protocolChosen = true;
+                    return true;
+                }
+
+                if (readBuffer.get() != BinaryCodec.MAGIC[magicMatched]) {
+                    return false;
+                }
+                magicMatched++;
+
+                if (magicMatched == BinaryCodec.MAGIC.length) {
+                    frameDecoder = new BinaryCodec.FrameDecoder(BinaryCodec.MAX_FRAME_LENGTH);
+                    protocolChosen = true;
+                }
+            }
+            return true;
+        }
+
+        private void readLines() throws IOException {
+            while (readBuffer.hasRemaining() && channel.isOpen() && !loginPending && !inputPaused) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    String line = lineBuffer.toString(ClientWriter.CHARSET);
+                    lineBuffer.reset();
+                    if (line.endsWith("\r")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    onLine(line);
+                } else if (lineBuffer.size() >= MAX_LINE_LENGTH) {
+                    close();
+                    return;
+                } else {
+                    lineBuffer.write(b);
+                }
+            }
+        }
+
+        private void onFrame(BinaryCodec.Frame frame) throws IOException {
+            if (loggedIn) {
+                dispatch(() -> Server.processClientFrame(socket, frame));
+                return;
+            }
+
+            // Login was refused; the connection closes once the reply is written
+            if (rejected) {
+                return;
+            }
+
+            startLogin(Server.LoginRequest.fromFrame(frame), BinaryCodec.INSTANCE);
+        }
+
+        private void onLine(String line) throws IOException {
+            if (loggedIn) {
+                dispatch(() -> Server.processClientMessage(socket, line));
+                return;
+            }
+
+            // Login was refused; the connection closes once the reply is written
+            if (rejected) {
+                return;
+            }
+
+            // Collect the login type, then username and password for LOGIN/REGISTER
+            handshake.add(line);
+            String loginType = handshake.get(0);
+            boolean needsCredentials = "LOGIN".equals(loginType) || "REGISTER".equals(loginType);
+            if (needsCredentials && handshake.size() < 3) {
+                return;
+            }
+
+            String username = needsCredentials ? handshake.get(1) : null;
+            String password = needsCredentials ? handshake.get(2) : null;
+            handshake.clear();
+
+            startLogin(new Server.LoginRequest(loginType, username, password), TextCodec.INSTANCE);
+        }
+
+        // Check the credentials and log the client in off the reactor, pausing reads, then carry on
+        // reading back on it
+        private void startLogin(Server.LoginRequest request, WireCodec codec) {
+            loginPending = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+            Server.authenticate(request).whenComplete((result, error) -> commands.execute(() -> {
+                if (error != null) {
+                    Log.warn("login.check_failed", error);
+                }
+                finishLogin(request, codec, result != null ? result : WireCodec.LoginResult.LOGIN_FAILED);
+            }));
+        }
+
+        // Worker: place the client, then hand the outcome back to the reactor
+        private void finishLogin(Server.LoginRequest request, WireCodec codec, WireCodec.LoginResult result) {
+            if (closed.get()) {
+                // Timed out or went away while its credentials were checked
+                return;
+            }
+
+            boolean accepted;
+            try {
+                accepted = Server.login(socket, writer, codec, request, result);
+            } catch (IOException e) {
+                reactor.requestClose(this);
+                return;
+            } catch (RuntimeException e) {
+                Log.error("connection.error", e);
+                reactor.requestClose(this);
+                return;
+            } finally {
+                Server.finishHandshake(socket);
+            }
+
+            reactor.execute(() -> {
+                loggedIn = accepted;
+                rejected = !accepted;
+                loginPending = false;
+
+                // Whatever the client sent after its login, then resume reading
+                resumeInput();
+            });
+        }
+
+        void onWritable() throws IOException {
+            while (true) {
+                if (pendingWrite == null) {
+                    byte[] frame = writer.poll();
+                    if (frame == null) {
+                        break;
+                    }
+                    pendingWrite = ByteBuffer.wrap(frame);
+                }
+
+                channel.write(pendingWrite);
+                if (pendingWrite.hasRemaining()) {
+                    // Socket buffer is full, wait for the next OP_WRITE
+                    return;
+                }
+                pendingWrite = null;
+            }
+
+            if (writer.isFinished()) {
+                close();
+                return;
+            }
+
+            key.interestOps(readInterest());
+            writeRequested.set(false);
+
+            // Output queued while we were clearing the flag needs another round
+            if (writer.hasPending() && writeRequested.compareAndSet(false, true)) {
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public void writeReady() {
+            if (writeRequested.compareAndSet(false, true)) {
+                reactor.requestWrite(this);
+            }
+        }
+
+        @Override
+        public void abort() {
+            writer.discard();
+            reactor.requestClose(this);
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            Server.finishHandshake(socket);
+            writer.discard();
+            sessions.remove(socket);
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+
+            // Leaving the room touches the database, so it runs on a worker, after any login or
+            // command still waiting; it does nothing if the client never logged in
+            commands.execute(() -> Server.handleDisconnect(socket));
+        }
+    }
+}
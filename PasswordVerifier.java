@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Checks and stores passwords on a small fixed pool of threads, so however many clients log in at
+// once, hashing never uses more than that many cores and never runs on a thread serving chat
+// traffic. Logins beyond what the pool's queue holds are refused with RejectedExecutionException
+// rather than queued behind it. A wrong password for an existing user fails again straight away for
+// a short while, without touching the pool or the database.
+public class PasswordVerifier {
+    // How long a failed username/password pair is remembered
+    private static final long FAILURE_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Verifications that may wait for a thread, per thread
+    private static final int QUEUE_PER_THREAD = 64;
+
+    private final DatabaseManager dbManager;
+    private final PasswordHasher hasher;
+    private final ThreadPoolExecutor pool;
+
+    // Expiry time of each recently failed pair, keyed by username and a digest of the password, and
+    // the keys in the order they were remembered, which with a fixed TTL is the order they expire in
+    private final ConcurrentHashMap<String, Long> recentFailures = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Failure> failureOrder = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock purgeLock = new ReentrantLock();
+
+    private static class Failure {
+        final String key;
+        final long expiresAt;
+
+        Failure(String key, long expiresAt) {
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public PasswordVerifier(DatabaseManager dbManager, PasswordHasher hasher, int threads) {
+        this.dbManager = dbManager;
+        this.hasher = hasher;
+
+        int size = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(size * QUEUE_PER_THREAD), runnable -> {
+                    Thread thread = new Thread(runnable, "password-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // Completes with whether password belongs to the registered (non-anonymous) user, or
+    // exceptionally if the database could not be read. A correct password stored in plaintext or
+    // with too few iterations is rehashed on the way.
+    public CompletableFuture<Boolean> verify(String username, String password) throws RejectedExecutionException {
+        String failureKey = failureKey(username, password);
+        Long expiry = recentFailures.get(failureKey);
+        if (expiry != null && expiry - System.nanoTime() > 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            String stored;
+            try {
+                stored = dbManager.findPassword(username);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+            if (stored == null) {
+                // Not remembered: the user may be registered any moment, here or on another node
+                return false;
+            }
+            if (!hasher.matches(password, stored)) {
+                rememberFailure(failureKey);
+                return false;
+            }
+
+            if (hasher.needsRehash(stored)) {
+                dbManager.updatePassword(username, hasher.hash(password));
+            }
+            return true;
+        }, pool);
+    }
+
+    // Completes with whether a new user was registered with a hash of password
+    public CompletableFuture<Boolean> register(String username, String password) throws RejectedExecutionException {
+        return CompletableFuture.supplyAsync(() -> {
+            if (dbManager.usernameExists(username)) {
+                return false;
+            }
+
+            return dbManager.registerUser(username, hasher.hash(password), false);
+        }, pool);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private void rememberFailure(String failureKey) {
+        long now = System.nanoTime();
+        purgeExpiredFailures(now);
+        long expiresAt = now + FAILURE_TTL_NANOS;
+        recentFailures.put(failureKey, expiresAt);
+        failureOrder.add(new Failure(failureKey, expiresAt));
+    }
+
+    // Forget the failures whose TTL has run out, from the oldest; one thread at a time, the others
+    // leave it to that one
+    private void purgeExpiredFailures(long now) {
+        if (!purgeLock.tryLock()) {
+            return;
+        }
+        try {
+            Failure oldest;
+            while ((oldest = failureOrder.peek()) != null && oldest.expiresAt - now <= 0) {
+                failureOrder.poll();
+                // Unless the pair failed again since and was remembered anew
+                recentFailures.remove(oldest.key, oldest.expiresAt);
+            }
+        } finally {
+            purgeLock.unlock();
+        }
+    }
+
+    // The password itself is never kept; a fast digest is enough to recognise a repeat
+    private static String failureKey(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
+            return username + "\n" + Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java SE runtime is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Who belongs to each room and which of them are online, kept up to date as clients connect, join,
+// leave and disconnect. A room's members are read from the database once and maintained from then
+// on, so a user list costs one pass over the room's members per presence version and nothing per
+// request after that. Rooms larger than a page are listed a page at a time.
+public class PresenceRegistry {
+    private final DatabaseManager dbManager;
+    private final int pageSize;
+
+    private final ConcurrentHashMap<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+
+    public PresenceRegistry(DatabaseManager dbManager, int pageSize) {
+        this.dbManager = dbManager;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    // Held while changing a room's membership and while queueing its deltas or lists, so every
+    // client's queue holds them in version order
+    public ReentrantLock lockOf(String roomId) {
+        return presenceOf(roomId).lock;
+    }
+
+    // Add a user to a room and mark them online; returns the room's new presence version.
+    // Called with the room's lock held.
+    public long join(String roomId, String username) {
+        RoomPresence presence = presenceOf(roomId);
+        dbManager.addUserToRoom(username, roomId);
+        if (presence.members != null) {
+            presence.members.add(username);
+        }
+        presence.online.add(username);
+        return presence.changed();
+    }
+
+    // Remove a user from a room; returns the room's new presence version. Called with the room's
+    // lock held.
+    public long leave(String roomId, String username) {
+        RoomPresence presence = presenceOf(roomId);
+        dbManager.removeUserFromRoom(username, roomId);
+        if (presence.members != null) {
+            presence.members.remove(username);
+        }
+        presence.online.remove(username);
+        return presence.changed();
+    }
+
+    // One page of a room's user list as of its current presence version, online users first.
+    // Pages past the end are clamped to the last one. Called with the room's lock held.
+    public byte[] userListFrame(WireCodec codec, String roomId, int page) {
+        RoomPresence presence = presenceOf(roomId);
+        if (presence.listedOnline == null) {
+            presence.list(dbManager, roomId);
+        }
+
+        int total = presence.listedOnline.size() + presence.listedOffline.size();
+        int pages = Math.max(1, (total + pageSize - 1) / pageSize);
+        int index = Math.max(0, Math.min(page, pages - 1));
+
+        byte[][] frames = presence.userListFrames.computeIfAbsent(codec, c -> new byte[pages][]);
+        if (frames[index] == null) {
+            frames[index] = encodePage(codec, roomId, presence, index, pages);
+        }
+        return frames[index];
+    }
+
+    // The same page as plain lists, for another cluster node to encode for its own clients. Called
+    // with the room's lock held.
+    public UserListPage userListPage(String roomId, int page) {
+        RoomPresence presence = presenceOf(roomId);
+        if (presence.listedOnline == null) {
+            presence.list(dbManager, roomId);
+        }
+
+        int total = presence.listedOnline.size() + presence.listedOffline.size();
+        int pages = Math.max(1, (total + pageSize - 1) / pageSize);
+        int index = Math.max(0, Math.min(page, pages - 1));
+        return slice(presence, index, pages);
+    }
+
+    private byte[] encodePage(WireCodec codec, String roomId, RoomPresence presence, int page, int pages) {
+        UserListPage slice = slice(presence, page, pages);
+        return codec.userList(roomId, slice.version, page, pages, slice.online, slice.offline);
+    }
+
+    // Slices the page out of the online and offline lists without copying them
+    private UserListPage slice(RoomPresence presence, int page, int pages) {
+        List<String> online = presence.listedOnline;
+        List<String> offline = presence.listedOffline;
+
+        int from = page * pageSize;
+        int to = Math.min(from + pageSize, online.size() + offline.size());
+
+        List<String> pageOnline = online.subList(Math.min(from, online.size()), Math.min(to, online.size()));
+        List<String> pageOffline = offline.subList(Math.max(0, from - online.size()),
+                Math.max(0, to - online.size()));
+
+        return new UserListPage(presence.version, page, pages, pageOnline, pageOffline);
+    }
+
+    // One page of a room's user list
+    public static class UserListPage {
+        public final long version;
+        public final int page;
+        public final int pages;
+        public final List<String> online;
+        public final List<String> offline;
+
+        public UserListPage(long version, int page, int pages, List<String> online, List<String> offline) {
+            this.version = version;
+            this.page = page;
+            this.pages = pages;
+            this.online = online;
+            this.offline = offline;
+        }
+    }
+
+    private RoomPresence presenceOf(String roomId) {
+        return rooms.computeIfAbsent(roomId, id -> new RoomPresence());
+    }
+
+    // Membership state of one room. Every join or leave bumps the version; the split into online
+    // and offline users is rebuilt on the first list request after a change, and each page is
+    // rendered once per protocol.
+    private static class RoomPresence {
+        final ReentrantLock lock = new ReentrantLock();
+        long version;
+
+        // Everyone in the room, sorted by name like the database returns them; null until the first
+        // list is requested
+        Set<String> members;
+        final Set<String> online = new HashSet<>();
+
+        List<String> listedOnline;
+        List<String> listedOffline;
+        final Map<WireCodec, byte[][]> userListFrames = new IdentityHashMap<>(4);
+
+        long changed() {
+            listedOnline = null;
+            listedOffline = null;
+            userListFrames.clear();
+            return ++version;
+        }
+
+        void list(DatabaseManager dbManager, String roomId) {
+            if (members == null) {
+                members = new TreeSet<>(dbManager.getUsersInRoom(roomId));
+            }
+
+            listedOnline = new ArrayList<>(online.size());
+            listedOffline = new ArrayList<>(Math.max(0, members.size() - online.size()));
+            for (String user : members) {
+                if (online.contains(user)) {
+                    listedOnline.add(user);
+                } else {
+                    listedOffline.add(user);
+                }
+            }
+        }
+    }
+}
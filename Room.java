@@ -1,19 +1,26 @@
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Room {
     private String id;
     private String name;
     private String accessCode;
-    private List<String> messages;
     private List<String> users;
+
+    // Most recent chat messages, oldest first, kept in a fixed-size ring; null while the room is
+    // cold. Guarded by historyLock, which MessageHistory holds around every use.
+    public static final int HISTORY_SIZE = 100;
+    private Message[] messages;
+    private int messagesStart;
+    private int messagesCount;
+    private final ReentrantLock historyLock = new ReentrantLock();
     
     public Room(String name, String accessCode) {
         this.id = UUID.randomUUID().toString();
         this.name = name;
         this.accessCode = accessCode;
-        this.messages = new ArrayList<>();
         this.users = new ArrayList<>();
     }
     
@@ -22,7 +29,6 @@ public class Room {
         this.id = id;
         this.name = name;
         this.accessCode = accessCode;
-        this.messages = new ArrayList<>();
         this.users = new ArrayList<>();
     }
     
@@ -38,15 +44,57 @@ public class Room {
         return accessCode;
     }
     
-    public List<String> getMessages() {
-        return messages;
+    public ReentrantLock getHistoryLock() {
+        return historyLock;
+    }
+    
+    // True once the history has been loaded and is being kept up to date
+    public boolean isHistoryLoaded() {
+        return messages != null;
+    }
+    
+    // Start caching history with the given messages, oldest first
+    public void loadHistory(List<Message> recent) {
+        messages = new Message[HISTORY_SIZE];
+        messagesStart = 0;
+        messagesCount = 0;
+        for (Message message : recent) {
+            addMessage(message);
+        }
+    }
+    
+    // Stop caching history and free the buffer
+    public void unloadHistory() {
+        messages = null;
+        messagesStart = 0;
+        messagesCount = 0;
+    }
+    
+    // The last limit messages, oldest first
+    public List<Message> getMessages(int limit) {
+        int count = Math.min(limit, messagesCount);
+        List<Message> recent = new ArrayList<>(count);
+        for (int i = messagesCount - count; i < messagesCount; i++) {
+            recent.add(messages[(messagesStart + i) % messages.length]);
+        }
+        return recent;
     }
     
-    public void addMessage(String message) {
-        messages.add(message);
-        // Limit message history to last 100 messages
-        if (messages.size() > 100) {
-            messages.remove(0);
+    public List<Message> getMessages() {
+        return getMessages(messagesCount);
+    }
+    
+    // Append a message, overwriting the oldest once the ring is full
+    public void addMessage(Message message) {
+        if (messages == null) {
+            return;
+        }
+        if (messagesCount < messages.length) {
+            messages[(messagesStart + messagesCount) % messages.length] = message;
+            messagesCount++;
+        } else {
+            messages[messagesStart] = message;
+            messagesStart = (messagesStart + 1) % messages.length;
         }
     }
     
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Write-through cache of the rooms table. Rooms are never renamed or deleted, so after the initial
+// load every lookup is answered from memory and only creating a room goes to the database.
+public class RoomCatalog {
+    private final DatabaseManager dbManager;
+    private final ConcurrentHashMap<String, Room> roomsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Room> roomsByName = new ConcurrentHashMap<>();
+
+    // Held while creating a room so two clients cannot create the same name at once
+    private final ReentrantLock createLock = new ReentrantLock();
+
+    // All rooms in creation order and the room list frames rendered from them, replaced as a
+    // whole when a room is added
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+
+    public RoomCatalog(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+
+        List<Room> loaded = new ArrayList<>();
+        for (Room room : dbManager.getAllRooms()) {
+            // If a name occurs twice, the first room with it wins, as it did for the database lookup
+            roomsById.put(room.getId(), room);
+            roomsByName.putIfAbsent(room.getName(), room);
+            loaded.add(room);
+        }
+        publish(loaded);
+    }
+
+    public Room getById(String roomId) {
+        return roomsById.get(roomId);
+    }
+
+    public Room getByName(String roomName) {
+        return roomsByName.get(roomName);
+    }
+
+    public List<Room> getAll() {
+        return snapshot.rooms;
+    }
+
+    // Create a room in the database and the cache; null if the name is taken or the insert failed
+    public Room create(String name, String accessCode) {
+        createLock.lock();
+        try {
+            if (roomsByName.containsKey(name)) {
+                return null;
+            }
+
+            Room room = dbManager.createRoom(name, accessCode);
+            if (room == null) {
+                return null;
+            }
+
+            roomsById.put(room.getId(), room);
+            roomsByName.put(name, room);
+
+            List<Room> updated = new ArrayList<>(snapshot.rooms);
+            updated.add(room);
+            publish(updated);
+            return room;
+        } finally {
+            createLock.unlock();
+        }
+    }
+
+    // The room list frame for the current rooms in the given protocol, rendered once and shared by
+    // every client it is sent to
+    public byte[] getRoomListFrame(WireCodec codec) {
+        Snapshot current = snapshot;
+        return current.frames.computeIfAbsent(codec, c -> c.roomList(current.rooms));
+    }
+
+    private void publish(List<Room> updated) {
+        snapshot = new Snapshot(Collections.unmodifiableList(updated));
+    }
+
+    private static class Snapshot {
+        final List<Room> rooms;
+        final ConcurrentHashMap<WireCodec, byte[]> frames = new ConcurrentHashMap<>();
+
+        Snapshot(List<Room> rooms) {
+            this.rooms = rooms;
+        }
+    }
+}
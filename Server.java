@@ -1,464 +1,1543 @@
 import java.io.*;
 import java.net.*;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpServer;
 
 public class Server {
-    // Client data structure - stores client socket, username, and current room
+    // Client data structure - stores client socket, writer, protocol, username, and current room
     private static class ClientInfo {
         Socket socket;
+        ClientWriter writer;
+        WireCodec codec;
         String username;
-        String currentRoomId;
+        volatile String currentRoomId;
         boolean isAnonymous;
 
-        public ClientInfo(Socket socket, String username, String currentRoomId, boolean isAnonymous) {
+        // Token the client can resume this session with, or null if its protocol can't
+        String resumeToken;
+
+        // Where /history without a cursor carries on from: the oldest message sent so far
+        volatile long historyCursor;
+
+        // Set once the client has been told the server is shutting down; drain thread only
+        boolean goingAway;
+
+        public ClientInfo(Socket socket, ClientWriter writer, WireCodec codec, String username,
+                String currentRoomId, boolean isAnonymous) {
             this.socket = socket;
+            this.writer = writer;
+            this.codec = codec;
             this.username = username;
             this.currentRoomId = currentRoomId;
             this.isAnonymous = isAnonymous;
         }
     }
 
+    // What a client sent to log in: the login type, plus username and password for LOGIN/REGISTER,
+    // or the resume token and last message seen for RESUME
+    static class LoginRequest {
+        final String loginType;
+        final String username;
+        final String password;
+        final String resumeToken;
+        final long lastMessageId;
+
+        LoginRequest(String loginType, String username, String password) {
+            this(loginType, username, password, null, 0);
+        }
+
+        private LoginRequest(String loginType, String username, String password, String resumeToken,
+                long lastMessageId) {
+            this.loginType = loginType;
+            this.username = username;
+            this.password = password;
+            this.resumeToken = resumeToken;
+            this.lastMessageId = lastMessageId;
+        }
+
+        // The first frame of a binary connection
+        static LoginRequest fromFrame(BinaryCodec.Frame frame) throws IOException {
+            switch (frame.opcode) {
+                case BinaryCodec.LOGIN:
+                    return new LoginRequest("LOGIN", frame.readString(), frame.readString());
+
+                case BinaryCodec.REGISTER:
+                    return new LoginRequest("REGISTER", frame.readString(), frame.readString());
+
+                case BinaryCodec.ANONYMOUS:
+                    return new LoginRequest("ANONYMOUS", null, null);
+
+                case BinaryCodec.RESUME:
+                    return new LoginRequest("RESUME", null, null, frame.readString(), frame.readVarlong());
+
+                default:
+                    return new LoginRequest(null, null, null);
+            }
+        }
+    }
+
     // Map to store all connected clients
     private static final ConcurrentHashMap<Socket, ClientInfo> clients = new ConcurrentHashMap<>();
 
-    // Set of all usernames to prevent duplicates
-    private static final Set<String> usernames = Collections.synchronizedSet(new HashSet<>());
+    // Clients currently in each room, keyed by room id
+    private static final ConcurrentHashMap<String, Set<ClientInfo>> roomSubscribers = new ConcurrentHashMap<>();
+
+
+    // Usernames of connected clients, reserved at login (lock-free so virtual threads never pin on it)
+    private static final UsernameRegistry usernames = new UsernameRegistry();
+
+    // Admitted connections that have not finished logging in, each holding a handshake slot
+    private static final Set<Socket> handshaking = ConcurrentHashMap.newKeySet();
+
+    // Sockets accepted in threads/virtual mode whose handler has not finished yet
+    private static final Set<Socket> openConnections = ConcurrentHashMap.newKeySet();
 
     // Database manager
     private static DatabaseManager dbManager;
 
+    // Rooms, cached in memory in front of the database
+    private static RoomCatalog rooms;
+
+    // Recent messages per room, cached in memory
+    private static MessageHistory history;
+
+    // Members and online users of each room, kept in memory
+    private static PresenceRegistry presence;
+
+    // Server settings from the command line
+    private static ServerConfig config;
+
+    // Limits on concurrent and per-address logins
+    private static AdmissionControl admission;
+
+    // Checks and stores password hashes off the connection threads
+    private static PasswordVerifier passwords;
+
+    // Sessions that clients can resume after a dropped connection
+    private static SessionRegistry sessions;
+
+    // Routes rooms owned by other nodes over the cluster bus; null when running on its own
+    private static Cluster cluster;
+
+    // Serves the metrics report on the loopback interface; null when turned off
+    private static HttpServer statsEndpoint;
+
+    // Metrics updated for every connection and message
+    private static final LongAdder acceptedConnections = Metrics.counter("connections.accepted");
+    private static final Metrics.Family messagesIn = Metrics.family("messages.in");
+    private static final Metrics.Family messagesOut = Metrics.family("messages.out");
+    private static final LatencyHistogram fanOutTime = Metrics.timer("broadcast.fanout");
+
+    // Most missed messages sent to a resumed client; further behind, it gets the recent history instead
+    private static final int MAX_MISSED_MESSAGES = 100;
+
+    // Messages per page of older history, unless the client asks for another size, and the most it may ask for
+    private static final int HISTORY_PAGE_SIZE = 50;
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+
+    // Runs client handlers in threads/virtual mode
+    private static ExecutorService handlerExecutor;
+
+    // Runs the tasks that write queued output to blocking sockets; bounded, so a burst of output
+    // to many clients doesn't start a thread for each of them
+    private static ExecutorService writerExecutor;
+
+    // Set once the shutdown hook has asked the server to stop
+    private static volatile boolean shuttingDown = false;
+
+    // Released when main has drained the clients and closed the database, so the shutdown hook can
+    // wait for it
+    private static final CountDownLatch stopped = new CountDownLatch(1);
+
     // Main method - start the server
     public static void main(String[] args) {
-        try (ServerSocket server = new ServerSocket(5000)) {
-            // Initialize database
-            dbManager = new DatabaseManager();
+        start(ServerConfig.fromArgs(args));
+        int port = config.getPort();
 
-            System.out.println("Server started on port 5000");
-            System.out.println("Waiting for clients to connect...");
-
-            // Listen for connections
-            while (true) {
-                Socket connection = server.accept();
-                System.out.println("New connection from " + connection.getInetAddress().getHostAddress() + ":"
-                        + connection.getPort());
+        startOutboundStatsReporter(config.getOutboundStatsInterval());
 
-                // Handle client in a new thread
-                new Thread(() -> handleClient(connection)).start();
+        try {
+            if ("nio".equals(config.getMode())) {
+                new NioServer(config).run();
+            } else {
+                runBlocking(config);
             }
         } catch (IOException e) {
-            System.out.println("Could not start server on port 5000");
-            e.printStackTrace();
+            Log.error("server.start_failed", e, "port", port);
         } finally {
-            if (dbManager != null) {
-                dbManager.close();
-            }
+            drain(config.getShutdownTimeoutSeconds());
+            stop();
+            stopped.countDown();
         }
     }
 
-    // Handle a client connection
-    private static void handleClient(Socket connection) {
+    // Set up the database, caches and registries the connection handlers share; also used by the
+    // benchmarks to drive the server without sockets
+    static void start(ServerConfig serverConfig) {
+        config = serverConfig;
+        Log.configure(config.getLogLevel(), config.getLogSampling(), config.getLogRepeatLimit());
+
+        // Initialize database
+        dbManager = new DatabaseManager(config.getDatabaseFile(), config.getMessageBatchSize(),
+                config.getMessageFlushMillis(), config.getDatabaseReaders());
+        rooms = new RoomCatalog(dbManager);
+        history = new MessageHistory(dbManager, config.getHistoryRooms());
+        presence = new PresenceRegistry(dbManager, config.getUserListPageSize());
+        admission = new AdmissionControl(config.getMaxHandshakes(), config.getLoginRate(), config.getLoginBurst());
+        passwords = new PasswordVerifier(dbManager, new PasswordHasher(config.getPasswordIterations()),
+                config.getPasswordThreads());
+        sessions = new SessionRegistry(config.getResumeGraceSeconds());
+        startCluster(config);
+
+        Metrics.gauge("connections.active", clients::size);
+        Metrics.gauge("connections.handshaking", handshaking::size);
+        Metrics.gauge("db.messages.pending", dbManager::pendingMessageCount);
+        Metrics.gauge("outbound.queued", ClientWriter::totalQueued);
+        Metrics.gauge("outbound.dropped", ClientWriter::totalDropped);
+        Metrics.gauge("outbound.bytes", ClientWriter::totalBytesWritten);
+        Metrics.gauge("outbound.slow-consumers-disconnected", ClientWriter::totalSlowConsumerDisconnects);
+        startStatsEndpoint(config.getStatsPort());
+    }
+
+    // Serve the metrics report over HTTP at /stats, on the loopback interface only
+    private static void startStatsEndpoint(int port) {
+        if (port == 0) {
+            return;
+        }
+
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+            statsEndpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            Log.warn("stats.start_failed", e, "port", port);
+            return;
+        }
 
-            // Authentication protocol
-            String loginType = in.readLine();
-            String username = null;
-            boolean isAnonymous = false;
+        statsEndpoint.createContext("/stats", exchange -> {
+            byte[] body = ClientWriter.encode(Metrics.report());
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + ClientWriter.CHARSET.name());
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        statsEndpoint.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        statsEndpoint.start();
+        Log.info("stats.started", "url", "http://localhost:" + port + "/stats");
+    }
 
-            if ("ANONYMOUS".equals(loginType)) {
-                // Anonymous login
-                username = "Anon-" + UUID.randomUUID().toString().substring(0, 8);
-                isAnonymous = true;
+    // Leave the cluster, stop hashing passwords and flush the database, once no handler is running
+    static void stop() {
+        if (statsEndpoint != null) {
+            statsEndpoint.stop(0);
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+        passwords.shutdown();
+        dbManager.close();
+        Log.flush(1000);
+    }
+
+    // Join the cluster when one is configured, and tell the other nodes about the rooms this one has
+    private static void startCluster(ServerConfig config) {
+        Map<String, InetSocketAddress> nodes = config.getClusterNodes();
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        String self = config.getNodeId();
+        cluster = new Cluster(self, new ArrayList<>(nodes.keySet()), config.getClusterPointsPerNode(),
+                new TcpBus(self, nodes), config.getDatabaseReaders());
+        cluster.start(new ClusterNode());
+
+        for (Room room : rooms.getAll()) {
+            cluster.announceRoom(room.getName(), room.getAccessCode());
+        }
+        Log.info("cluster.joined", "node", self, "nodes", nodes.size());
+    }
 
-                // Register anonymous user
-                dbManager.registerUser(username, "", true);
+    // Blocking mode: each connection is handled by a platform or virtual thread from handlerExecutor
+    private static void runBlocking(ServerConfig config) throws IOException {
+        int port = config.getPort();
+        handlerExecutor = createHandlerExecutor(config.getMode());
+        writerExecutor = createWriterExecutor(config.getMode(), config.getWriterThreads());
 
-                // Send success response
-                out.println("LOGIN_SUCCESS");
-                out.println(username);
+        try (ServerSocket server = new ServerSocket(port, config.getAcceptBacklog())) {
+            installShutdownHook(server);
 
-            } else if ("LOGIN".equals(loginType)) {
-                // Regular login
-                username = in.readLine();
-                String password = in.readLine();
+            Log.info("server.started", "port", port, "mode", config.getMode());
 
-                if (dbManager.isValidUser(username, password)) {
-                    out.println("LOGIN_SUCCESS");
+            // Listen for connections
+            while (!shuttingDown) {
+                Socket connection;
+                try {
+                    connection = server.accept();
+                } catch (SocketException e) {
+                    if (shuttingDown) {
+                        break;
+                    }
+                    throw e;
+                }
+                Log.info("connection.accepted", "address", connection.getRemoteSocketAddress());
+                acceptedConnections.increment();
+
+                // Handle client on the executor, or just tell it when to come back
+                openConnections.add(connection);
+                int retryAfter = admit(connection);
+                if (retryAfter == 0) {
+                    handlerExecutor.execute(() -> handleClient(connection));
                 } else {
-                    out.println("LOGIN_FAILED");
-                    connection.close();
-                    return;
+                    handlerExecutor.execute(() -> rejectClient(connection, retryAfter));
                 }
+            }
+        }
+    }
 
-            } else if ("REGISTER".equals(loginType)) {
-                // New user registration
-                username = in.readLine();
-                String password = in.readLine();
+    // Virtual threads when requested and available (JDK 21+), otherwise a pool of platform threads
+    private static ExecutorService createHandlerExecutor(String mode) {
+        if ("virtual".equals(mode)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Log.warn("server.virtual_threads_unavailable", "using", "platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
 
-                if (dbManager.usernameExists(username)) {
-                    out.println("REGISTER_FAILED");
-                    connection.close();
-                    return;
-                } else {
-                    dbManager.registerUser(username, password, false);
-                    out.println("REGISTER_SUCCESS");
+    // Virtual threads when requested and available, which cost little while a write blocks;
+    // otherwise a fixed pool of platform threads
+    private static ExecutorService createWriterExecutor(String mode, int threads) {
+        if ("virtual".equals(mode)) {
+            return createHandlerExecutor(mode);
+        }
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "client-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // On shutdown, close the listener so the accept loop ends, then wait until main has drained
+    // the clients and flushed the database
+    static void installShutdownHook(Closeable listener) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stopAccepting(listener), "shutdown"));
+    }
+
+    static boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    private static void stopAccepting(Closeable listener) {
+        shuttingDown = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+
+        try {
+            stopped.await(config.getShutdownTimeoutSeconds() + 10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Let the connected clients go without losing anything sent to them: tell each one to come back
+    // after a delay, wait for their queues to be written, then close what is left within the
+    // timeout. Messages the clients send meanwhile are still recorded, and stop() flushes them.
+    private static void drain(int timeoutSeconds) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        int connected = clients.size();
+
+        sendGoingAway(deadline);
+        int forced = clients.size();
+
+        NioServer.closeSessions();
+        drainHandlers(deadline);
+        Log.info("server.drained", "clients", connected, "forced", forced);
+    }
+
+    // Send every client the going-away frame after whatever is already queued for it and close its
+    // queue; each connection closes once the queue is written. Returns when all clients have
+    // disconnected or the deadline passes. Clients that finish logging in meanwhile are told too.
+    private static void sendGoingAway(long deadline) {
+        while (!clients.isEmpty() && System.nanoTime() - deadline < 0) {
+            for (ClientInfo info : clients.values()) {
+                if (info.goingAway) {
+                    continue;
                 }
+                info.goingAway = true;
 
+                try {
+                    info.writer.send(info.codec.goingAway(reconnectDelay()));
+                } catch (IOException e) {
+                    // Already disconnecting
+                }
+                info.writer.close();
+            }
+
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Seconds a client turned away by shutdown waits before reconnecting, spread out so the clients
+    // of a restarted server don't all come back at once
+    private static int reconnectDelay() {
+        return ThreadLocalRandom.current().nextInt(1, config.getReconnectSpreadSeconds() + 1);
+    }
+
+    // Stop the handler executor and wait, until the deadline but at least a second, for running
+    // handlers to finish
+    private static void drainHandlers(long deadline) {
+        if (handlerExecutor == null) {
+            return;
+        }
+
+        handlerExecutor.shutdown();
+
+        // Handlers are blocked reading their sockets; closing them makes each one disconnect and exit
+        for (Socket connection : openConnections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        try {
+            long remaining = Math.max(deadline - System.nanoTime(), TimeUnit.SECONDS.toNanos(1));
+            if (!handlerExecutor.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+                Log.warn("server.drain_timed_out", "seconds", config.getShutdownTimeoutSeconds());
+                handlerExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            handlerExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        writerExecutor.shutdownNow();
+    }
+
+    // Periodically report outbound queue depth and drops
+    private static void startOutboundStatsReporter(int intervalSeconds) {
+        if (intervalSeconds == 0) {
+            return;
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbound-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        reporter.scheduleAtFixedRate(() -> {
+            int deepest = 0;
+            for (ClientInfo info : clients.values()) {
+                deepest = Math.max(deepest, info.writer.depth());
+            }
+
+            Log.info("outbound.stats", "queued", ClientWriter.totalQueued(), "deepest", deepest,
+                    "dropped", ClientWriter.totalDropped(),
+                    "slow_consumers_disconnected", ClientWriter.totalSlowConsumerDisconnects());
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Ask admission control whether a new connection may log in: 0 if it may, in which case it holds
+    // a handshake slot until finishHandshake, otherwise the seconds it should wait before retrying
+    static int admit(Socket connection) {
+        int retryAfter = admission.admit(connection.getInetAddress());
+        if (retryAfter == 0) {
+            handshaking.add(connection);
+        }
+        return retryAfter;
+    }
+
+    // Free the handshake slot of a connection whose login succeeded, failed or was abandoned
+    static void finishHandshake(Socket connection) {
+        if (handshaking.remove(connection)) {
+            admission.release();
+        }
+    }
+
+    // Send a RETRY_AFTER in whichever protocol the client opened with, then close the connection
+    private static void rejectClient(Socket connection, int retryAfter) {
+        try {
+            connection.setSoTimeout(config.getHandshakeTimeoutMillis());
+            ClientWriter out = ClientWriter.StreamTransport.open(connection, writerExecutor, 1,
+                    ClientWriter.OverflowPolicy.DISCONNECT);
+
+            InputStream input = connection.getInputStream();
+            int first = input.read();
+
+            // Discard the rest of what the client has sent so closing doesn't reset the connection
+            // before it reads the reply
+            input.skip(input.available());
+
+            WireCodec codec = first == BinaryCodec.MAGIC[0] ? BinaryCodec.INSTANCE : TextCodec.INSTANCE;
+            out.send(codec.retryAfter(retryAfter));
+            out.close();
+        } catch (IOException e) {
+            try {
+                connection.close();
+            } catch (IOException closeError) {
+                // Already closed
+            }
+        } finally {
+            openConnections.remove(connection);
+        }
+    }
+
+    // Handle a client connection
+    private static void handleClient(Socket connection) {
+        try {
+            // Reads time out until the client has logged in, so half-open connections don't pile up
+            connection.setSoTimeout(config.getHandshakeTimeoutMillis());
+
+            BufferedInputStream input = new BufferedInputStream(connection.getInputStream());
+            ClientWriter out = ClientWriter.StreamTransport.open(connection, writerExecutor,
+                    config.getOutboundQueueCapacity(), config.getOverflowPolicy());
+
+            // Binary clients open with a magic preamble, text clients with their login line
+            input.mark(1);
+            boolean binary = input.read() == BinaryCodec.MAGIC[0];
+            input.reset();
+
+            if (binary) {
+                input.skip(1);
+                handleBinaryClient(connection, input, out);
             } else {
-                // Invalid login type
-                out.println("INVALID_LOGIN_TYPE");
+                handleTextClient(connection, input, out);
+            }
+
+            // Client closed the connection
+            handleDisconnect(connection);
+
+        } catch (SocketTimeoutException e) {
+            // Never finished logging in
+            Log.info("login.timed_out", "address", connection.getRemoteSocketAddress());
+            try {
                 connection.close();
-                return;
+            } catch (IOException closeError) {
+                // Already closed
             }
+        } catch (SocketException e) {
+            // Client disconnected unexpectedly
+            handleDisconnect(connection);
+        } catch (IOException e) {
+            Log.warn("connection.error", e, "address", connection.getRemoteSocketAddress());
+            handleDisconnect(connection);
+        } finally {
+            finishHandshake(connection);
+            openConnections.remove(connection);
+        }
+    }
 
-            // Check if username is already connected
-            if (usernames.contains(username)) {
-                String originalUsername = username;
-                int counter = 1;
+    // Newline-delimited protocol
+    private static void handleTextClient(Socket connection, InputStream input, ClientWriter out)
+            throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+
+        // Authentication protocol
+        String loginType = in.readLine();
+        String username = null;
+        String password = null;
+        if ("LOGIN".equals(loginType) || "REGISTER".equals(loginType)) {
+            username = in.readLine();
+            password = in.readLine();
+        }
 
-                // For non-anonymous users, reject the connection
-                if (!isAnonymous) {
-                    out.println("USERNAME_TAKEN");
-                    connection.close();
-                    return;
-                }
+        boolean loggedIn = login(connection, out, TextCodec.INSTANCE, new LoginRequest(loginType, username, password));
+        finishHandshake(connection);
+        if (!loggedIn) {
+            return;
+        }
+        connection.setSoTimeout(0);
+
+        // Process messages from this client
+        String message;
+        while ((message = in.readLine()) != null) {
+            processClientMessage(connection, message);
+        }
+    }
+
+    // Length-prefixed binary protocol
+    private static void handleBinaryClient(Socket connection, InputStream in, ClientWriter out)
+            throws IOException {
+        if (!BinaryCodec.readMagic(in)) {
+            out.close();
+            return;
+        }
+
+        BinaryCodec.Frame frame = BinaryCodec.readFrame(in, BinaryCodec.MAX_FRAME_LENGTH);
+        boolean loggedIn = frame != null
+                && login(connection, out, BinaryCodec.INSTANCE, LoginRequest.fromFrame(frame));
+        finishHandshake(connection);
+        if (!loggedIn) {
+            return;
+        }
+        connection.setSoTimeout(0);
+
+        while ((frame = BinaryCodec.readFrame(in, BinaryCodec.MAX_FRAME_LENGTH)) != null) {
+            processClientFrame(connection, frame);
+        }
+    }
+
+    // Check a client's credentials and log it in, waiting for the password check
+    static boolean login(Socket connection, ClientWriter out, WireCodec codec, LoginRequest request)
+            throws IOException {
+        WireCodec.LoginResult result;
+        try {
+            result = authenticate(request).join();
+        } catch (CompletionException e) {
+            Log.warn("login.check_failed", e.getCause());
+            result = "REGISTER".equals(request.loginType)
+                    ? WireCodec.LoginResult.REGISTER_FAILED
+                    : WireCodec.LoginResult.LOGIN_FAILED;
+        }
+        return login(connection, out, codec, request, result);
+    }
+
+    // Check the credentials of a login or registration. Passwords are hashed on the verifier's
+    // pool, so this returns straight away; the result is LOGIN_SUCCESS or REGISTER_SUCCESS, or why
+    // the client is turned away, with RETRY_AFTER when the pool is saturated.
+    static CompletableFuture<WireCodec.LoginResult> authenticate(LoginRequest request) {
+        if ("ANONYMOUS".equals(request.loginType)) {
+            return CompletableFuture.completedFuture(WireCodec.LoginResult.LOGIN_SUCCESS);
+        }
+
+        // The token is checked when login takes the session over
+        if ("RESUME".equals(request.loginType)) {
+            return CompletableFuture.completedFuture(request.resumeToken != null
+                    ? WireCodec.LoginResult.RESUMED
+                    : WireCodec.LoginResult.RESUME_FAILED);
+        }
 
-                // For anonymous users, append a number
-                while (usernames.contains(username)) {
-                    username = originalUsername + counter;
-                    counter++;
+        boolean register = "REGISTER".equals(request.loginType);
+        if (!register && !"LOGIN".equals(request.loginType)) {
+            return CompletableFuture.completedFuture(WireCodec.LoginResult.INVALID_LOGIN_TYPE);
+        }
+
+        WireCodec.LoginResult success = register
+                ? WireCodec.LoginResult.REGISTER_SUCCESS
+                : WireCodec.LoginResult.LOGIN_SUCCESS;
+        WireCodec.LoginResult failure = register
+                ? WireCodec.LoginResult.REGISTER_FAILED
+                : WireCodec.LoginResult.LOGIN_FAILED;
+        if (request.username == null || request.password == null) {
+            return CompletableFuture.completedFuture(failure);
+        }
+
+        try {
+            CompletableFuture<Boolean> check = register
+                    ? passwords.register(request.username, request.password)
+                    : passwords.verify(request.username, request.password);
+            return check.thenApply(ok -> ok ? success : failure);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(WireCodec.LoginResult.RETRY_AFTER);
+        }
+    }
+
+    // Finish logging in a client whose credentials authenticate has checked, and place it in the
+    // General room; returns false if the connection was rejected
+    static boolean login(Socket connection, ClientWriter out, WireCodec codec, LoginRequest request,
+            WireCodec.LoginResult result) throws IOException {
+        String username = request.username;
+        boolean isAnonymous = "ANONYMOUS".equals(request.loginType);
+
+        // Shutting down; come back to the restarted server, or another node, in a while
+        if (shuttingDown) {
+            out.send(codec.retryAfter(reconnectDelay()));
+            out.close();
+            return false;
+        }
+
+        // Turned away by authenticate
+        if (result == WireCodec.LoginResult.RETRY_AFTER) {
+            out.send(codec.retryAfter(admission.retryAfter(1)));
+            out.close();
+            return false;
+        }
+        if (result == WireCodec.LoginResult.RESUMED) {
+            return resume(connection, out, codec, request);
+        }
+        if (result != WireCodec.LoginResult.LOGIN_SUCCESS && result != WireCodec.LoginResult.REGISTER_SUCCESS) {
+            out.send(codec.loginResult(result, null, false));
+            out.close();
+            return false;
+        }
+
+        // Reserve the name for this connection before reporting success, so a name can't be handed
+        // to two clients and a rejected login never sends LOGIN_SUCCESS first
+        if (isAnonymous) {
+            // Anonymous login; the rare clash with a connected name gets a number appended
+            username = usernames.reserveUnique("Anon-" + UUID.randomUUID().toString().substring(0, 8), connection);
+
+            // Register anonymous user
+            dbManager.registerUser(username, "", true);
+
+        } else if (!usernames.reserve(username, connection)) {
+            // Already connected
+            out.send(codec.loginResult(WireCodec.LoginResult.USERNAME_TAKEN, null, false));
+            out.close();
+            return false;
+        }
+
+        // Until clients.put hands the name over to handleDisconnect, a login that fails on the way,
+        // e.g. because the database is unavailable, must give it back itself
+        ClientInfo clientInfo;
+        Room generalRoom;
+        boolean placed = false;
+        try {
+            // Let the other nodes log the new user in too
+            if (result == WireCodec.LoginResult.REGISTER_SUCCESS && cluster != null) {
+                String hash = dbManager.getPassword(username);
+                if (hash != null) {
+                    cluster.announceUser(username, hash);
                 }
             }
 
-            // Add username to active set
-            usernames.add(username);
-
             // Get or create "General" room if it doesn't exist
-            Room generalRoom = dbManager.getRoomByName("General");
+            generalRoom = rooms.getByName("General");
             if (generalRoom == null) {
-                generalRoom = dbManager.createRoom("General", "public");
+                generalRoom = rooms.create("General", "public");
+                if (generalRoom == null) {
+                    // Created by a login racing this one
+                    generalRoom = rooms.getByName("General");
+                } else if (cluster != null) {
+                    cluster.announceRoom("General", "public");
+                }
+            }
+            if (generalRoom == null) {
+                // Neither found nor created, so the database is failing
+                out.send(codec.loginResult(result == WireCodec.LoginResult.REGISTER_SUCCESS
+                        ? WireCodec.LoginResult.REGISTER_FAILED
+                        : WireCodec.LoginResult.LOGIN_FAILED, null, false));
+                out.close();
+                return false;
             }
 
-            // Add user to room
-            dbManager.addUserToRoom(username, generalRoom.getId());
+            // Send success response
+            out.send(codec.loginResult(result, username, isAnonymous));
 
             // Create client info
-            ClientInfo clientInfo = new ClientInfo(connection, username, generalRoom.getId(), isAnonymous);
+            clientInfo = new ClientInfo(connection, out, codec, username, generalRoom.getId(), isAnonymous);
+            openSession(clientInfo);
             clients.put(connection, clientInfo);
+            placed = true;
+        } finally {
+            if (!placed) {
+                usernames.release(username, connection);
+            }
+        }
+
+        // Add user to room and notify everyone in it
+        enterRoom(clientInfo, generalRoom.getId(), WireCodec.Presence.JOINED_CHAT);
 
-            // Notify everyone in the room
-            broadcastToRoom(username + " has joined the chat!", generalRoom.getId(), null);
+        // Send room list to client
+        sendRoomList(clientInfo);
 
-            // Send room list to client
-            sendRoomList(connection);
+        // Send recent messages from this room
+        sendRecentMessages(clientInfo, generalRoom.getId());
+
+        // Send user list for this room
+        sendRoomUserList(clientInfo, generalRoom.getId());
 
-            // Send recent messages from this room
-            sendRecentMessages(connection, generalRoom.getId());
+        return true;
+    }
 
-            // Send user list for this room
-            sendRoomUserList(connection, generalRoom.getId());
+    // Take over the session named by a resume token: the client goes back into the room it was in
+    // and is sent only the messages it missed. Returns false if the connection was rejected.
+    private static boolean resume(Socket connection, ClientWriter out, WireCodec codec, LoginRequest request)
+            throws IOException {
+        SessionRegistry.Session session = sessions.claim(request.resumeToken);
+        if (session == null) {
+            out.send(codec.loginResult(WireCodec.LoginResult.RESUME_FAILED, null, false));
+            out.close();
+            return false;
+        }
 
-            // Process messages from this client
-            String message;
-            while ((message = in.readLine()) != null) {
-                processClientMessage(connection, message);
+        // The old connection may not have been noticed dropping yet; the token proves it is gone
+        String roomId = session.roomId;
+        Socket stale = session.connection;
+        if (stale != null) {
+            ClientInfo previous = clients.get(stale);
+            if (previous != null) {
+                roomId = previous.currentRoomId;
             }
+            // Free the name now; in nio mode the old session itself is closed on its reactor
+            handleDisconnect(stale);
+            NioServer.closeSession(stale);
+        }
 
-        } catch (SocketException e) {
-            // Client disconnected unexpectedly
-            handleDisconnect(connection);
+        Room room = roomId != null ? rooms.getById(roomId) : null;
+        if (room == null) {
+            room = rooms.getByName("General");
+        }
+        if (room == null) {
+            // Nowhere to put the client, so the database is failing; it can log in afresh later
+            out.send(codec.loginResult(WireCodec.LoginResult.RESUME_FAILED, null, false));
+            out.close();
+            return false;
+        }
+
+        if (!usernames.reserve(session.username, connection)) {
+            // Logged in again some other way while disconnected
+            out.send(codec.loginResult(WireCodec.LoginResult.USERNAME_TAKEN, null, false));
+            out.close();
+            return false;
+        }
+
+        try {
+            out.send(codec.loginResult(WireCodec.LoginResult.RESUMED, session.username, session.anonymous));
         } catch (IOException e) {
-            e.printStackTrace();
-            handleDisconnect(connection);
+            usernames.release(session.username, connection);
+            throw e;
         }
+
+        ClientInfo clientInfo = new ClientInfo(connection, out, codec, session.username, room.getId(),
+                session.anonymous);
+        openSession(clientInfo);
+        clients.put(connection, clientInfo);
+
+        // Another node holds the room's messages; the client gets its recent history instead
+        if (isRemote(room)) {
+            enterRoom(clientInfo, room.getId(), WireCodec.Presence.JOINED_CHAT);
+            sendRecentMessages(clientInfo, room.getId());
+            return true;
+        }
+
+        // Under the history lock no message can be recorded for the room, so everything sent to it
+        // is either in the missed messages or reaches the client after it has been subscribed. The
+        // missed messages are queued before the lock is released, so no live message overtakes them.
+        ReentrantLock lock = room.getHistoryLock();
+        lock.lock();
+        try {
+            enterRoom(clientInfo, room.getId(), WireCodec.Presence.JOINED_CHAT);
+            List<Message> missed = request.lastMessageId > 0
+                    ? dbManager.getMessagesAfter(room.getId(), request.lastMessageId, MAX_MISSED_MESSAGES + 1)
+                    : null;
+
+            if (missed == null || missed.size() > MAX_MISSED_MESSAGES) {
+                // Too far behind to catch up message by message
+                sendRecentMessages(clientInfo, room.getId());
+            } else {
+                for (Message message : missed) {
+                    out.send(codec.chat(message));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
     }
 
-    // Process a message from a client
-    private static void processClientMessage(Socket connection, String message) throws IOException {
+    // Give a client that has just logged in a resume token, if resuming is on and its protocol can
+    // carry one
+    private static void openSession(ClientInfo clientInfo) throws IOException {
+        if (!sessions.isEnabled()) {
+            return;
+        }
+
+        String token = sessions.open(clientInfo.username, clientInfo.isAnonymous, clientInfo.socket);
+        byte[] frame = clientInfo.codec.session(token, sessions.getGraceSeconds());
+        if (frame == null) {
+            sessions.close(token);
+            return;
+        }
+
+        clientInfo.resumeToken = token;
+        clientInfo.writer.send(frame);
+    }
+
+    // Disconnect a client that asked to leave; its session can't be resumed
+    private static void handleExit(ClientInfo clientInfo) {
+        if (clientInfo.resumeToken != null) {
+            sessions.close(clientInfo.resumeToken);
+        }
+        handleDisconnect(clientInfo.socket);
+    }
+
+    // Process a message from a text client
+    static void processClientMessage(Socket connection, String message) throws IOException {
         ClientInfo clientInfo = clients.get(connection);
         if (clientInfo == null)
             return;
 
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
-
         // Check for commands
         if (message.startsWith("/")) {
-            String[] parts = message.split("\\s+", 2);
-            String command = parts[0].toLowerCase();
-
-            switch (command) {
-                case "/exit":
-                    handleDisconnect(connection);
-                    break;
-
-                case "/rooms":
-                    sendRoomList(connection);
-                    break;
-
-                case "/join":
-                    if (parts.length > 1) {
-                        joinRoom(connection, parts[1]);
-                    } else {
-                        out.println("Usage: /join <room_name> [access_code]");
+            processCommand(clientInfo, message);
+        } else {
+            sendChatMessage(clientInfo, message);
+        }
+    }
+
+    // Process a frame from a binary client
+    static void processClientFrame(Socket connection, BinaryCodec.Frame frame) throws IOException {
+        ClientInfo clientInfo = clients.get(connection);
+        if (clientInfo == null)
+            return;
+
+        switch (frame.opcode) {
+            case BinaryCodec.MESSAGE:
+                sendChatMessage(clientInfo, frame.readString());
+                break;
+
+            case BinaryCodec.COMMAND:
+                processCommand(clientInfo, frame.readString());
+                break;
+
+            case BinaryCodec.JOIN: {
+                int roomNumber = frame.readVarint();
+                String accessCode = frame.readString();
+                String roomId = BinaryCodec.ROOM_IDS.keyOf(roomNumber);
+                Room room = roomId != null ? rooms.getById(roomId) : null;
+                if (room == null) {
+                    sendNotice(clientInfo, "Room does not exist.");
+                } else {
+                    joinRoom(clientInfo, room, accessCode);
+                }
+                break;
+            }
+
+            case BinaryCodec.CREATE: {
+                String roomName = frame.readString();
+                String accessCode = frame.readString();
+                createRoom(clientInfo, roomName, accessCode.isEmpty() ? "public" : accessCode);
+                break;
+            }
+
+            case BinaryCodec.ROOMS:
+                sendRoomList(clientInfo);
+                break;
+
+            case BinaryCodec.USERS: {
+                // Older clients send no page number
+                int page = frame.hasRemaining() ? frame.readVarint() : 0;
+                sendRoomUserList(clientInfo, clientInfo.currentRoomId, page);
+                break;
+            }
+
+            case BinaryCodec.OLDER: {
+                long cursor = frame.readVarlong();
+                int pageSize = frame.readVarint();
+                sendOlderMessages(clientInfo, cursor, pageSize);
+                break;
+            }
+
+            case BinaryCodec.EXIT:
+                handleExit(clientInfo);
+                break;
+
+            default:
+                sendNotice(clientInfo, "Unknown request.");
+                break;
+        }
+    }
+
+    // Run a command typed by the user, such as "/join Dev"
+    private static void processCommand(ClientInfo clientInfo, String message) throws IOException {
+        String[] parts = message.split("\\s+", 2);
+        String command = parts[0].toLowerCase();
+
+        switch (command) {
+            case "/exit":
+                handleExit(clientInfo);
+                break;
+
+            case "/rooms":
+                sendRoomList(clientInfo);
+                break;
+
+            case "/join":
+                if (parts.length > 1) {
+                    String[] joinParts = parts[1].split("\\s+", 2);
+                    String roomName = joinParts[0];
+                    String accessCode = joinParts.length > 1 ? joinParts[1] : "";
+                    joinRoom(clientInfo, roomName, accessCode);
+                } else {
+                    sendNotice(clientInfo, "Usage: /join <room_name> [access_code]");
+                }
+                break;
+
+            case "/create":
+                if (parts.length > 1) {
+                    String[] roomParts = parts[1].split("\\s+", 2);
+                    String roomName = roomParts[0];
+                    String accessCode = roomParts.length > 1 ? roomParts[1] : "public";
+                    createRoom(clientInfo, roomName, accessCode);
+                } else {
+                    sendNotice(clientInfo, "Usage: /create <room_name> [access_code]");
+                }
+                break;
+
+            case "/users": {
+                // Pages are numbered from 1 for users
+                int page = 0;
+                if (parts.length > 1) {
+                    try {
+                        page = Integer.parseInt(parts[1].trim()) - 1;
+                    } catch (NumberFormatException e) {
+                        sendNotice(clientInfo, "Usage: /users [page]");
+                        break;
                     }
-                    break;
-
-                case "/create":
-                    if (parts.length > 1) {
-                        String[] roomParts = parts[1].split("\\s+", 2);
-                        String roomName = roomParts[0];
-                        String accessCode = roomParts.length > 1 ? roomParts[1] : "public";
-                        createRoom(connection, roomName, accessCode);
-                    } else {
-                        out.println("Usage: /create <room_name> [access_code]");
+                }
+                sendRoomUserList(clientInfo, clientInfo.currentRoomId, page);
+                break;
+            }
+
+            case "/history": {
+                // Both optional: the cursor defaults to just before what the client was last sent
+                long cursor = clientInfo.historyCursor;
+                int pageSize = HISTORY_PAGE_SIZE;
+                if (parts.length > 1) {
+                    try {
+                        String[] historyParts = parts[1].trim().split("\\s+", 2);
+                        cursor = Long.parseLong(historyParts[0]);
+                        if (historyParts.length > 1) {
+                            pageSize = Integer.parseInt(historyParts[1]);
+                        }
+                    } catch (NumberFormatException e) {
+                        sendNotice(clientInfo, "Usage: /history [before_message_id] [count]");
+                        break;
                     }
-                    break;
+                }
+                sendOlderMessages(clientInfo, cursor, pageSize);
+                break;
+            }
 
-                case "/users":
-                    sendRoomUserList(connection, clientInfo.currentRoomId);
-                    break;
+            case "/stats":
+                if (isAdmin(clientInfo)) {
+                    List<String> lines = new ArrayList<>(Metrics.report());
+                    lines.add(0, "Server statistics:");
+                    clientInfo.writer.send(clientInfo.codec.notices(lines));
+                } else {
+                    sendNotice(clientInfo, "Only administrators can see server statistics.");
+                }
+                break;
 
-                case "/help":
-                    sendHelpMessage(connection);
-                    break;
+            case "/help":
+                sendHelpMessage(clientInfo);
+                break;
 
-                default:
-                    out.println("Unknown command. Type /help for available commands.");
-                    break;
-            }
-        } else {
-            // Regular message - broadcast to room
-            broadcastToRoom(message, clientInfo.currentRoomId, clientInfo.username);
+            default:
+                sendNotice(clientInfo, "Unknown command. Type /help for available commands.");
+                break;
+        }
+    }
 
-            // Store message in database
-            dbManager.storeMessage(clientInfo.currentRoomId, clientInfo.username, message);
+    // Regular message - broadcast to the sender's room
+    private static void sendChatMessage(ClientInfo clientInfo, String message) throws IOException {
+        String roomId = clientInfo.currentRoomId;
+
+        // The room's owner records it and sends it back to this node's clients
+        Room room = rooms.getById(roomId);
+        messagesIn.get(room != null ? room.getName() : roomId).increment();
+        if (isRemote(room)) {
+            cluster.sendChat(room.getName(), clientInfo.username, message);
+            return;
         }
+
+        // Keep it in the room's history and queue it for the database writer, which gives it its id
+        Message chat = room != null
+                ? history.record(room, clientInfo.username, message)
+                : dbManager.queueMessage(roomId, clientInfo.username, message);
+
+        broadcastToRoom(chat);
+    }
+
+    // Send a message from the server to one client
+    private static void sendNotice(ClientInfo clientInfo, String text) throws IOException {
+        clientInfo.writer.send(clientInfo.codec.notice(text));
     }
 
     // Send help information to client
-    private static void sendHelpMessage(Socket connection) throws IOException {
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
-        out.println("Available commands:");
-        out.println("/rooms - List all available rooms");
-        out.println("/join <room_name> [access_code] - Join a room (provide access code if required)");
-        out.println("/create <room_name> [access_code] - Create a new room with optional access code");
-        out.println("/users - Show users in current room");
-        out.println("/exit - Disconnect from server");
-        out.println("/help - Show this help message");
+    private static void sendHelpMessage(ClientInfo clientInfo) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                "Available commands:",
+                "/rooms - List all available rooms",
+                "/join <room_name> [access_code] - Join a room (provide access code if required)",
+                "/create <room_name> [access_code] - Create a new room with optional access code",
+                "/users [page] - Show users in current room",
+                "/history [before_message_id] [count] - Show older messages in current room",
+                "/exit - Disconnect from server",
+                "/help - Show this help message"));
+        if (isAdmin(clientInfo)) {
+            lines.add("/stats - Show server statistics");
+        }
+        clientInfo.writer.send(clientInfo.codec.notices(lines));
+    }
+
+    // Registered users named in the admins setting
+    private static boolean isAdmin(ClientInfo clientInfo) {
+        return !clientInfo.isAnonymous && config.getAdmins().contains(clientInfo.username);
     }
 
     // Handle client disconnection
-    private static void handleDisconnect(Socket connection) {
-        ClientInfo clientInfo = clients.get(connection);
+    static void handleDisconnect(Socket connection) {
+        // Removing first makes sure only one caller cleans up a connection
+        ClientInfo clientInfo = clients.remove(connection);
         if (clientInfo == null)
             return;
 
-        System.out.println(clientInfo.username + " has disconnected.");
+        Log.info("client.disconnected", "user", clientInfo.username, "room", clientInfo.currentRoomId);
 
-        // Notify everyone in the room
-        try {
-            broadcastToRoom(clientInfo.username + " has left the chat!", clientInfo.currentRoomId, null);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        // Remove user from room in database
-        dbManager.removeUserFromRoom(clientInfo.username, clientInfo.currentRoomId);
+        // Remove user from room and notify everyone in it
+        leaveRoom(clientInfo, clientInfo.currentRoomId, WireCodec.Presence.LEFT_CHAT);
 
         // Update last seen timestamp
         dbManager.updateUserLastSeen(clientInfo.username);
 
+        // The client may come back and resume where it left off
+        if (clientInfo.resumeToken != null) {
+            sessions.detach(clientInfo.resumeToken, clientInfo.currentRoomId);
+        }
+
         // Clean up collections
-        clients.remove(connection);
-        usernames.remove(clientInfo.username);
+        usernames.release(clientInfo.username, connection);
 
-        // Close connection
+        // Close connection, dropping anything still queued for it
+        clientInfo.writer.discard();
         try {
             connection.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("connection.close_failed", e, "user", clientInfo.username);
         }
     }
 
     // Create a new room
-    private static void createRoom(Socket connection, String roomName, String accessCode) throws IOException {
-        ClientInfo clientInfo = clients.get(connection);
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
-
+    private static void createRoom(ClientInfo clientInfo, String roomName, String accessCode) throws IOException {
         // Check if room name already exists
-        if (dbManager.getRoomByName(roomName) != null) {
-            out.println("Room name already exists. Please choose another name.");
+        if (rooms.getByName(roomName) != null) {
+            sendNotice(clientInfo, "Room name already exists. Please choose another name.");
             return;
         }
 
         // Create room in database
-        Room room = dbManager.createRoom(roomName, accessCode);
+        Room room = rooms.create(roomName, accessCode);
         if (room == null) {
-            out.println("Failed to create room.");
+            sendNotice(clientInfo, "Failed to create room.");
             return;
         }
 
-        out.println("Room '" + roomName + "' created successfully!");
+        sendNotice(clientInfo, "Room '" + roomName + "' created successfully!");
+        if (cluster != null) {
+            cluster.announceRoom(roomName, accessCode);
+        }
+
+        broadcastRoomList();
+
+        // Join the newly created room
+        joinRoom(clientInfo, room, accessCode);
+    }
 
-        // Broadcast updated room list to all clients
-        for (Socket clientSocket : clients.keySet()) {
+    // Broadcast updated room list to all clients, encoded once per protocol
+    private static void broadcastRoomList() {
+        for (ClientInfo info : clients.values()) {
             try {
-                sendRoomList(clientSocket);
+                sendRoomList(info);
             } catch (IOException e) {
                 // Skip clients with connection issues
-                System.err.println("Failed to send room list to a client: " + e.getMessage());
+                Log.warn("rooms.send_failed", e, "user", info.username);
             }
         }
-
-        // Join the newly created room
-        joinRoom(connection, roomName + " " + accessCode);
     }
 
-    // Join a room
-    private static void joinRoom(Socket connection, String params) throws IOException {
-        ClientInfo clientInfo = clients.get(connection);
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
-
-        String[] parts = params.split("\\s+", 2);
-        String roomName = parts[0];
-        String accessCode = parts.length > 1 ? parts[1] : "";
-
+    // Join a room by name
+    private static void joinRoom(ClientInfo clientInfo, String roomName, String accessCode) throws IOException {
         // Find room by name
-        Room room = dbManager.getRoomByName(roomName);
+        Room room = rooms.getByName(roomName);
         if (room == null) {
-            out.println("Room '" + roomName + "' does not exist.");
+            sendNotice(clientInfo, "Room '" + roomName + "' does not exist.");
             return;
         }
 
+        joinRoom(clientInfo, room, accessCode);
+    }
+
+    // Join a room
+    private static void joinRoom(ClientInfo clientInfo, Room room, String accessCode) throws IOException {
         // Check access code if not "public"
         if (!"public".equals(room.getAccessCode()) && !room.verifyAccessCode(accessCode)) {
-            out.println("Invalid access code for room '" + roomName + "'.");
+            sendNotice(clientInfo, "Invalid access code for room '" + room.getName() + "'.");
             return;
         }
 
-        // Leave current room
-        String oldRoomId = clientInfo.currentRoomId;
-        Room oldRoom = dbManager.getRoomById(oldRoomId);
-
-        // Notify users in old room
-        broadcastToRoom(clientInfo.username + " has left the room.", oldRoomId, null);
-
-        // Remove from old room in database
-        dbManager.removeUserFromRoom(clientInfo.username, oldRoomId);
+        // Leave current room, notifying its users
+        leaveRoom(clientInfo, clientInfo.currentRoomId, WireCodec.Presence.LEFT_ROOM);
 
         // Update client's current room
         clientInfo.currentRoomId = room.getId();
 
-        // Add to new room in database
-        dbManager.addUserToRoom(clientInfo.username, room.getId());
-
         // Notify user
-        out.println("You have joined room '" + roomName + "'.");
+        clientInfo.writer.send(clientInfo.codec.joinedRoom(room));
 
-        // Notify users in new room
-        broadcastToRoom(clientInfo.username + " has joined the room.", room.getId(), null);
+        // Join the new room, notifying its users
+        enterRoom(clientInfo, room.getId(), WireCodec.Presence.JOINED_ROOM);
 
         // Send recent messages from this room
-        sendRecentMessages(connection, room.getId());
+        sendRecentMessages(clientInfo, room.getId());
 
         // Send updated user list for new room
-        sendRoomUserList(connection, room.getId());
+        sendRoomUserList(clientInfo, room.getId());
     }
 
     // Send list of all available rooms
-    private static void sendRoomList(Socket connection) throws IOException {
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+    private static void sendRoomList(ClientInfo clientInfo) throws IOException {
+        clientInfo.writer.send(rooms.getRoomListFrame(clientInfo.codec));
+    }
 
-        List<Room> rooms = dbManager.getAllRooms();
+    // Send recent messages from a room
+    private static void sendRecentMessages(ClientInfo clientInfo, String roomId) throws IOException {
+        Room room = rooms.getById(roomId);
+        if (isRemote(room)) {
+            requestHistory(clientInfo, room, 0, 20, false);
+            return;
+        }
 
-        out.println("ROOM_LIST_BEGIN");
-        out.println("Available rooms:");
+        HistoryPage page = room != null
+                ? history.recent(room, 20)
+                : HistoryPage.of(dbManager.getMessagesBefore(roomId, 0, 20), 20);
 
-        for (Room room : rooms) {
-            String lockStatus = "public".equals(room.getAccessCode()) ? "🔓" : "🔒";
-            out.println(room.getName() + " " + lockStatus);
+        clientInfo.historyCursor = page.cursor;
+        clientInfo.writer.send(clientInfo.codec.history(roomId, page));
+    }
+
+    // Send a page of the current room's messages older than cursor; a cursor of 0 means the client
+    // already has the start of the room
+    private static void sendOlderMessages(ClientInfo clientInfo, long cursor, int pageSize) throws IOException {
+        String roomId = clientInfo.currentRoomId;
+        int limit = Math.max(1, Math.min(pageSize, MAX_HISTORY_PAGE_SIZE));
+        Room room = rooms.getById(roomId);
+        if (cursor > 0 && isRemote(room)) {
+            requestHistory(clientInfo, room, cursor, limit, true);
+            return;
         }
 
-        out.println("ROOM_LIST_END");
+        HistoryPage page = cursor > 0
+                ? HistoryPage.of(dbManager.getMessagesBefore(roomId, cursor, limit), limit)
+                : HistoryPage.EMPTY;
+
+        clientInfo.historyCursor = page.cursor;
+        clientInfo.writer.send(clientInfo.codec.olderHistory(roomId, page));
     }
 
-    // Send recent messages from a room
-    private static void sendRecentMessages(Socket connection, String roomId) throws IOException {
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+    // Send the first page of the list of users in a room
+    private static void sendRoomUserList(ClientInfo clientInfo, String roomId) throws IOException {
+        sendRoomUserList(clientInfo, roomId, 0);
+    }
+
+    // Send one page of the list of users in a room, as of the room's current presence version
+    private static void sendRoomUserList(ClientInfo clientInfo, String roomId, int page) throws IOException {
+        Room room = rooms.getById(roomId);
+        if (isRemote(room)) {
+            requestUserList(clientInfo, room, page);
+            return;
+        }
+
+        ReentrantLock lock = presence.lockOf(roomId);
+        lock.lock();
+        try {
+            // Sent under the lock so the client's queue holds it in version order with the deltas
+            clientInfo.writer.sendPresence(presence.userListFrame(clientInfo.codec, roomId, page));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Add a client to a room and send everyone in it the versioned delta
+    private static void enterRoom(ClientInfo clientInfo, String roomId, WireCodec.Presence event) {
+        Room room = rooms.getById(roomId);
+        if (isRemote(room)) {
+            // The owner keeps the room's presence and sends the delta back to this node
+            subscribe(clientInfo, roomId);
+            cluster.sendPresenceChange(event, room.getName(), clientInfo.username);
+            return;
+        }
 
-        List<String> messages = dbManager.getRecentMessages(roomId, 20);
+        ReentrantLock lock = presence.lockOf(roomId);
+        lock.lock();
+        try {
+            long version = presence.join(roomId, clientInfo.username);
+            subscribe(clientInfo, roomId);
+            publishPresence(event, clientInfo.username, roomId, version);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        out.println("CHAT_HISTORY_BEGIN");
+    // Remove a client from a room and send everyone left in it the versioned delta. Someone
+    // switching rooms is still subscribed when the notice goes out and sees their own departure.
+    private static void leaveRoom(ClientInfo clientInfo, String roomId, WireCodec.Presence event) {
+        Room room = rooms.getById(roomId);
+        if (isRemote(room)) {
+            unsubscribe(clientInfo, roomId);
+            cluster.sendPresenceChange(event, room.getName(), clientInfo.username);
+            return;
+        }
 
-        if (messages.isEmpty()) {
-            out.println("No previous messages in this room.");
-        } else {
-            for (String message : messages) {
-                out.println(message);
+        ReentrantLock lock = presence.lockOf(roomId);
+        lock.lock();
+        try {
+            if (event != WireCodec.Presence.LEFT_ROOM) {
+                unsubscribe(clientInfo, roomId);
             }
+            long version = presence.leave(roomId, clientInfo.username);
+            publishPresence(event, clientInfo.username, roomId, version);
+            unsubscribe(clientInfo, roomId);
+        } finally {
+            lock.unlock();
         }
+    }
+
+    // Broadcast a membership change; called with the room's presence lock held
+    private static void publishPresence(WireCodec.Presence event, String username, String roomId, long version) {
+        fanOut(codec -> codec.presence(event, roomId, version, username), roomId, true);
 
-        out.println("CHAT_HISTORY_END");
+        Room room = cluster != null ? rooms.getById(roomId) : null;
+        if (room != null) {
+            cluster.relayPresence(event, room.getName(), version, username);
+        }
     }
 
-    // Send list of users in a room
-    private static void sendRoomUserList(Socket connection, String roomId) throws IOException {
-        PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+    // Broadcast a message to all clients in its room, here and on the other nodes with clients in it
+    private static void broadcastToRoom(Message message) {
+        fanOut(codec -> codec.chat(message), message.roomId, false);
 
-        // Get all usernames in the room from database
-        List<String> roomUsers = dbManager.getUsersInRoom(roomId);
+        Room room = cluster != null ? rooms.getById(message.roomId) : null;
+        if (room != null) {
+            cluster.relayChat(room.getName(), message);
+        }
+    }
 
-        // Add currently connected users
-        Set<String> onlineUsers = new HashSet<>();
-        for (ClientInfo info : clients.values()) {
-            if (roomId.equals(info.currentRoomId)) {
-                onlineUsers.add(info.username);
+    // Whether a room is owned by another cluster node, which then handles its messages and presence
+    private static boolean isRemote(Room room) {
+        return cluster != null && room != null && !cluster.owns(room.getName());
+    }
+
+    // Ask a room's owner for a page of its history and send it to the client when it arrives
+    private static void requestHistory(ClientInfo clientInfo, Room room, long cursor, int limit, boolean older) {
+        cluster.requestHistory(room.getName(), cursor, limit).whenComplete((page, error) -> {
+            try {
+                if (error != null || page == null) {
+                    sendNotice(clientInfo, "History for '" + room.getName() + "' is unavailable right now.");
+                    return;
+                }
+
+                HistoryPage local = inRoom(page, room.getId());
+                clientInfo.historyCursor = local.cursor;
+                clientInfo.writer.send(older
+                        ? clientInfo.codec.olderHistory(room.getId(), local)
+                        : clientInfo.codec.history(room.getId(), local));
+            } catch (IOException e) {
+                // Client has disconnected
+            }
+        });
+    }
+
+    // Ask a room's owner for a page of its user list and send it to the client when it arrives
+    private static void requestUserList(ClientInfo clientInfo, Room room, int page) {
+        cluster.requestUserList(room.getName(), page).whenComplete((list, error) -> {
+            try {
+                if (error != null || list == null) {
+                    sendNotice(clientInfo, "Users of '" + room.getName() + "' are unavailable right now.");
+                    return;
+                }
+
+                clientInfo.writer.sendPresence(clientInfo.codec.userList(room.getId(), list.version, list.page,
+                        list.pages, list.online, list.offline));
+            } catch (IOException e) {
+                // Client has disconnected
             }
+        });
+    }
+
+    // A page of history from another node, moved into this node's copy of the room
+    private static HistoryPage inRoom(HistoryPage page, String roomId) {
+        List<Message> messages = new ArrayList<>(page.messages.size());
+        for (Message message : page.messages) {
+            messages.add(new Message(message.id, roomId, message.sender, message.timestamp, message.body,
+                    message.kind));
         }
+        return new HistoryPage(messages, page.cursor);
+    }
 
-        out.println("USER_LIST_BEGIN");
+    // Handles the rooms this node owns for clients on other nodes, and delivers what the owners of
+    // other rooms send back to the clients here
+    private static class ClusterNode implements Cluster.Node {
+        @Override
+        public boolean chat(String roomName, String sender, String body) {
+            Room room = rooms.getByName(roomName);
+            if (room == null) {
+                return false;
+            }
+            broadcastToRoom(history.record(room, sender, body));
+            return true;
+        }
+
+        @Override
+        public boolean presenceChange(WireCodec.Presence event, String roomName, String username) {
+            Room room = rooms.getByName(roomName);
+            if (room == null) {
+                return false;
+            }
 
-        // First send online users
-        for (String user : roomUsers) {
-            if (onlineUsers.contains(user)) {
-                out.println(user + " (online)");
+            boolean joining = event == WireCodec.Presence.JOINED_CHAT || event == WireCodec.Presence.JOINED_ROOM;
+            ReentrantLock lock = presence.lockOf(room.getId());
+            lock.lock();
+            try {
+                long version = joining
+                        ? presence.join(room.getId(), username)
+                        : presence.leave(room.getId(), username);
+                publishPresence(event, username, room.getId(), version);
+            } finally {
+                lock.unlock();
             }
+            return true;
         }
 
-        // Then send offline users
-        for (String user : roomUsers) {
-            if (!onlineUsers.contains(user)) {
-                out.println(user + " (offline)");
+        @Override
+        public PresenceRegistry.UserListPage userList(String roomName, int page) {
+            Room room = rooms.getByName(roomName);
+            if (room == null) {
+                return null;
+            }
+
+            ReentrantLock lock = presence.lockOf(room.getId());
+            lock.lock();
+            try {
+                return presence.userListPage(room.getId(), page);
+            } finally {
+                lock.unlock();
             }
         }
 
-        out.println("USER_LIST_END");
-    }
+        @Override
+        public HistoryPage history(String roomName, long beforeId, int limit) {
+            Room room = rooms.getByName(roomName);
+            if (room == null) {
+                return null;
+            }
 
-    // Broadcast a message to all clients in a room
-    private static void broadcastToRoom(String message, String roomId, String senderName) throws IOException {
-        String formattedMessage;
+            if (beforeId == 0) {
+                return history.recent(room, Math.max(1, Math.min(limit, Room.HISTORY_SIZE)));
+            }
+            int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+            return HistoryPage.of(dbManager.getMessagesBefore(room.getId(), beforeId, pageSize), pageSize);
+        }
 
-        if (senderName != null) {
-            formattedMessage = senderName + ": " + message;
-        } else {
-            formattedMessage = message;
+        @Override
+        public void deliver(String roomName, long id, String sender, long timestamp, String body,
+                Message.Kind kind) {
+            Room room = rooms.getByName(roomName);
+            if (room == null) {
+                return;
+            }
+
+            Message message = new Message(id, room.getId(), kind == Message.Kind.SYSTEM ? null : sender,
+                    timestamp, body, kind);
+            fanOut(codec -> codec.chat(message), room.getId(), false);
         }
 
-        for (Map.Entry<Socket, ClientInfo> entry : clients.entrySet()) {
-            ClientInfo info = entry.getValue();
+        @Override
+        public void presence(WireCodec.Presence event, String roomName, long version, String username) {
+            Room room = rooms.getByName(roomName);
+            if (room != null) {
+                fanOut(codec -> codec.presence(event, room.getId(), version, username), room.getId(), true);
+            }
+        }
 
-            // Only send to clients in the same room
-            if (roomId.equals(info.currentRoomId)) {
-                try {
-                    PrintWriter out = new PrintWriter(info.socket.getOutputStream(), true);
-                    out.println(formattedMessage);
-                } catch (SocketException e) {
-                    // Skip clients with connection issues
+        @Override
+        public void roomCreated(String roomName, String accessCode) {
+            if (rooms.getByName(roomName) == null && rooms.create(roomName, accessCode) != null) {
+                broadcastRoomList();
+            }
+        }
+
+        @Override
+        public void userRegistered(String username, String passwordHash) {
+            if (dbManager.getPassword(username) == null) {
+                dbManager.registerUser(username, passwordHash, false);
+            }
+        }
+    }
+
+    // Queue a frame for every client in the room, encoding it once per protocol in use
+    private static void fanOut(Function<WireCodec, byte[]> encoder, String roomId, boolean presence) {
+        long start = System.nanoTime();
+        int recipients = 0;
+
+        Map<WireCodec, byte[]> frames = new IdentityHashMap<>(4);
+        for (ClientInfo info : subscribersOf(roomId)) {
+            byte[] frame = frames.computeIfAbsent(info.codec, encoder);
+            try {
+                if (presence) {
+                    info.writer.sendPresence(frame);
+                } else {
+                    info.writer.send(frame);
                 }
+                recipients++;
+            } catch (IOException e) {
+                // Skip clients with connection issues
             }
         }
+
+        // Chat only; presence is counted by the outbound totals
+        if (!presence) {
+            fanOutTime.record(System.nanoTime() - start);
+            Room room = rooms.getById(roomId);
+            messagesOut.get(room != null ? room.getName() : roomId).add(recipients);
+        }
+    }
+
+    // Add a client to a room's subscribers; done inside compute so it can't race with removal of the set
+    private static void subscribe(ClientInfo clientInfo, String roomId) {
+        roomSubscribers.compute(roomId, (id, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = ConcurrentHashMap.newKeySet();
+            }
+            subscribers.add(clientInfo);
+            return subscribers;
+        });
+    }
+
+    // Remove a client from a room's subscribers, dropping the set once the room is empty
+    private static void unsubscribe(ClientInfo clientInfo, String roomId) {
+        roomSubscribers.computeIfPresent(roomId, (id, subscribers) -> {
+            subscribers.remove(clientInfo);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    // Clients currently in a room
+    private static Set<ClientInfo> subscribersOf(String roomId) {
+        Set<ClientInfo> subscribers = roomSubscribers.get(roomId);
+        return subscribers != null ? subscribers : Collections.emptySet();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,363 @@
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ServerConfig {
+    // Options passed on the command line as --key=value
+    private final Map<String, String> options;
+
+    // Every setting is parsed once, when the config is loaded, so reading one is just a field read
+    private final int port;
+    private final String mode;
+    private final int reactorThreads;
+    private final int writerThreads;
+    private final int workerThreads;
+    private final int shutdownTimeoutSeconds;
+    private final int reconnectSpreadSeconds;
+    private final int outboundQueueCapacity;
+    private final ClientWriter.OverflowPolicy overflowPolicy;
+    private final int outboundStatsInterval;
+    private final int messageBatchSize;
+    private final int messageFlushMillis;
+    private final int databaseReaders;
+    private final int historyRooms;
+    private final String databaseFile;
+    private final int userListPageSize;
+    private final int acceptBacklog;
+    private final int handshakeTimeoutMillis;
+    private final int maxHandshakes;
+    private final int loginRate;
+    private final int loginBurst;
+    private final int passwordIterations;
+    private final int passwordThreads;
+    private final int resumeGraceSeconds;
+    private final String nodeId;
+    private final Map<String, InetSocketAddress> clusterNodes;
+    private final int clusterPointsPerNode;
+    private final Set<String> admins;
+    private final int statsPort;
+    private final Log.Level logLevel;
+    private final double[] logSampling;
+    private final int logRepeatLimit;
+
+    private ServerConfig(Map<String, String> options) {
+        this.options = options;
+        port = getInt("port", 5000);
+        mode = get("mode", "threads").toLowerCase();
+        reactorThreads = Math.max(1, getInt("reactors", Runtime.getRuntime().availableProcessors()));
+        writerThreads = Math.max(1, getInt("writer-threads", Runtime.getRuntime().availableProcessors() * 4));
+        workerThreads = Math.max(1, getInt("worker-threads", Runtime.getRuntime().availableProcessors() * 2));
+        shutdownTimeoutSeconds = Math.max(1, getInt("shutdown-timeout", 10));
+        reconnectSpreadSeconds = Math.max(1, getInt("reconnect-spread", 10));
+        outboundQueueCapacity = Math.max(1, getInt("outbound-queue", 512));
+        overflowPolicy = parseOverflowPolicy();
+        outboundStatsInterval = Math.max(0, getInt("outbound-stats-interval", 60));
+        messageBatchSize = Math.max(1, getInt("db-batch-size", 100));
+        messageFlushMillis = Math.max(1, getInt("db-flush-ms", 50));
+        databaseReaders = Math.max(1, getInt("db-readers", 4));
+        historyRooms = Math.max(1, getInt("history-rooms", 1000));
+        databaseFile = get("db-file", "chat_app.db");
+        userListPageSize = Math.max(1, getInt("user-list-page-size", 200));
+        acceptBacklog = Math.max(1, getInt("accept-backlog", 512));
+        handshakeTimeoutMillis = Math.max(1, getInt("handshake-timeout-ms", 10_000));
+        maxHandshakes = Math.max(1, getInt("max-handshakes", 256));
+        loginRate = Math.max(0, getInt("login-rate", 10));
+        loginBurst = Math.max(1, getInt("login-burst", 20));
+        passwordIterations = Math.max(1, getInt("password-iterations", 120_000));
+        passwordThreads = Math.max(1,
+                getInt("password-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        resumeGraceSeconds = Math.max(0, getInt("resume-grace", 120));
+        nodeId = get("node-id", "node1");
+        clusterNodes = parseClusterNodes();
+        clusterPointsPerNode = Math.max(1, getInt("cluster-points", 64));
+        admins = parseAdmins();
+        statsPort = Math.max(0, getInt("stats-port", 0));
+        logLevel = parseLogLevel();
+        logSampling = parseLogSampling();
+        logRepeatLimit = Math.max(1, getInt("log-repeat-limit", 10));
+    }
+
+    // Parse command line arguments; anything not given falls back to -Dopenchat.<key>
+    public static ServerConfig fromArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                Log.warn("config.unrecognized_argument", "argument", arg);
+                continue;
+            }
+
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+        }
+
+        return new ServerConfig(options);
+    }
+
+    private String get(String key, String defaultValue) {
+        String value = options.get(key);
+        if (value == null) {
+            value = System.getProperty("openchat." + key);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.warn("config.invalid", "key", key, "value", value, "using", defaultValue);
+            return defaultValue;
+        }
+    }
+
+    // Port the chat server listens on
+    public int getPort() {
+        return port;
+    }
+
+    // Connection handling mode: "threads" (one thread per client), "virtual" (one virtual thread
+    // per client) or "nio" (selector reactors)
+    public String getMode() {
+        return mode;
+    }
+
+    // Number of selector threads used in nio mode
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+
+    // Threads writing queued output to clients in threads mode
+    public int getWriterThreads() {
+        return writerThreads;
+    }
+
+    // Threads running nio clients' logins and commands, which may wait on the database, so the
+    // reactors only read and write
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    // Seconds to wait for client handlers to finish when the server shuts down
+    public int getShutdownTimeoutSeconds() {
+        return shutdownTimeoutSeconds;
+    }
+
+    // Clients told the server is going away reconnect after a random delay of up to this many seconds
+    public int getReconnectSpreadSeconds() {
+        return reconnectSpreadSeconds;
+    }
+
+    // Frames that may wait in one client's outbound queue before the overflow policy kicks in
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    // What happens when a client's outbound queue is full: drop-oldest, coalesce-presence or disconnect
+    public ClientWriter.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    private ClientWriter.OverflowPolicy parseOverflowPolicy() {
+        String value = get("slow-consumer-policy", "coalesce-presence");
+        try {
+            return ClientWriter.OverflowPolicy.fromString(value);
+        } catch (IllegalArgumentException e) {
+            Log.warn("config.invalid", "key", "slow-consumer-policy", "value", value, "using", "coalesce-presence");
+            return ClientWriter.OverflowPolicy.COALESCE_PRESENCE;
+        }
+    }
+
+    // Seconds between outbound queue reports; 0 turns them off
+    public int getOutboundStatsInterval() {
+        return outboundStatsInterval;
+    }
+
+    // Chat messages written to the database per transaction
+    public int getMessageBatchSize() {
+        return messageBatchSize;
+    }
+
+    // Longest a chat message waits in the write-behind queue before it is committed
+    public int getMessageFlushMillis() {
+        return messageFlushMillis;
+    }
+
+    // Read-only database connections used for lookups next to the single writer connection
+    public int getDatabaseReaders() {
+        return databaseReaders;
+    }
+
+    // Rooms whose recent history is kept in memory; the least recently used are unloaded first
+    public int getHistoryRooms() {
+        return historyRooms;
+    }
+
+    // SQLite database file
+    public String getDatabaseFile() {
+        return databaseFile;
+    }
+
+    // Users per page of a room's user list; larger rooms are sent a page at a time
+    public int getUserListPageSize() {
+        return userListPageSize;
+    }
+
+    // Connections waiting to be accepted before the OS refuses new ones
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    // How long a client has to finish logging in before it is disconnected
+    public int getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    // Connections allowed to be logging in at the same time; more are told to retry later
+    public int getMaxHandshakes() {
+        return maxHandshakes;
+    }
+
+    // Logins per second allowed from one address; 0 turns the limit off
+    public int getLoginRate() {
+        return loginRate;
+    }
+
+    // Logins one address may make in a burst before login-rate applies
+    public int getLoginBurst() {
+        return loginBurst;
+    }
+
+    // PBKDF2 iterations per password hash; raising it rehashes each user's password at their next login
+    public int getPasswordIterations() {
+        return passwordIterations;
+    }
+
+    // Threads that hash and check passwords; bounds the CPU logins can take from chat traffic
+    public int getPasswordThreads() {
+        return passwordThreads;
+    }
+
+    // Seconds after a dropped connection during which the client may resume its session; 0 turns
+    // resuming off
+    public int getResumeGraceSeconds() {
+        return resumeGraceSeconds;
+    }
+
+    // Name of this node in the cluster; must be one of the names in cluster
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Every node of the cluster, this one included, as name=host:port,...; empty when running on
+    // its own. Each node listens for the others on its own port.
+    public Map<String, InetSocketAddress> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    private Map<String, InetSocketAddress> parseClusterNodes() {
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        String value = get("cluster", "");
+        for (String entry : value.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (equals <= 0 || colon < equals) {
+                Log.warn("config.invalid_cluster_node", "node", entry);
+                continue;
+            }
+
+            try {
+                int port = Integer.parseInt(entry.substring(colon + 1));
+                nodes.put(entry.substring(0, equals),
+                        InetSocketAddress.createUnresolved(entry.substring(equals + 1, colon), port));
+            } catch (NumberFormatException e) {
+                Log.warn("config.invalid_cluster_node", "node", entry);
+            }
+        }
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    // Points each node takes on the ring that assigns rooms to nodes; more spread rooms more evenly
+    public int getClusterPointsPerNode() {
+        return clusterPointsPerNode;
+    }
+
+    // Registered users allowed to run admin commands such as /stats, as name,name,...
+    public Set<String> getAdmins() {
+        return admins;
+    }
+
+    private Set<String> parseAdmins() {
+        Set<String> admins = new HashSet<>();
+        for (String name : get("admins", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                admins.add(name.trim());
+            }
+        }
+        return Set.copyOf(admins);
+    }
+
+    // Port on the loopback interface serving the metrics report at /stats over HTTP; 0 turns it off
+    public int getStatsPort() {
+        return statsPort;
+    }
+
+    // Lowest level logged: debug, info, warn or error
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    private Log.Level parseLogLevel() {
+        String value = get("log-level", "info");
+        try {
+            return Log.Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("config.invalid", "key", "log-level", "value", value, "using", "info");
+            return Log.Level.INFO;
+        }
+    }
+
+    // Fraction of each level's entries logged, from --log-sample-<level>; 1 logs them all
+    public double[] getLogSampling() {
+        return logSampling.clone();
+    }
+
+    private double[] parseLogSampling() {
+        Log.Level[] levels = Log.Level.values();
+        double[] rates = new double[levels.length];
+        for (Log.Level level : levels) {
+            String key = "log-sample-" + level.name().toLowerCase();
+            String value = get(key, "1");
+            try {
+                rates[level.ordinal()] = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                Log.warn("config.invalid", "key", key, "value", value, "using", 1);
+                rates[level.ordinal()] = 1;
+            }
+        }
+        return rates;
+    }
+
+    // Times per second the same warning or error is logged before further repeats are only counted
+    public int getLogRepeatLimit() {
+        return logRepeatLimit;
+    }
+}
@@ -0,0 +1,130 @@
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Resume tokens handed to clients at login. A client whose connection drops can present its token
+// on a new connection within the grace window and pick up where it left off: it skips the
+// password check and gets only the messages it missed instead of the room list, history and user
+// list of a fresh login. A token is good for one resume; the resumed session gets a new one.
+public class SessionRegistry {
+    private static final int TOKEN_BYTES = 18;
+
+    private final long graceNanos;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // Disconnected sessions in the order they were detached, which with a fixed grace window is the
+    // order they expire in, so expired ones are dropped from the head without searching the map
+    private final ConcurrentLinkedQueue<Detached> detached = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock purgeLock = new ReentrantLock();
+
+    private static class Detached {
+        final String token;
+        final Session session;
+        final long expiresAt;
+
+        Detached(String token, Session session, long expiresAt) {
+            this.token = token;
+            this.session = session;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // What a client needs to carry on after reconnecting
+    public static class Session {
+        final String username;
+        final boolean anonymous;
+
+        // The connection the session is in use on, or null once it has disconnected
+        volatile Socket connection;
+
+        // Room the client was in when it disconnected
+        volatile String roomId;
+
+        // System.nanoTime() after which a disconnected session can no longer be resumed
+        volatile long expiresAt;
+
+        Session(String username, boolean anonymous, Socket connection) {
+            this.username = username;
+            this.anonymous = anonymous;
+            this.connection = connection;
+        }
+    }
+
+    public SessionRegistry(int graceSeconds) {
+        this.graceNanos = TimeUnit.SECONDS.toNanos(Math.max(0, graceSeconds));
+    }
+
+    public boolean isEnabled() {
+        return graceNanos > 0;
+    }
+
+    public int getGraceSeconds() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(graceNanos);
+    }
+
+    // Start a session for a client that has just logged in on connection; returns its token
+    public String open(String username, boolean anonymous, Socket connection) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        sessions.put(token, new Session(username, anonymous, connection));
+        purgeExpired(System.nanoTime());
+        return token;
+    }
+
+    // The connection has gone; the session can be resumed in roomId until the grace window ends
+    public void detach(String token, String roomId) {
+        long now = System.nanoTime();
+        purgeExpired(now);
+
+        Session session = sessions.get(token);
+        if (session != null) {
+            session.roomId = roomId;
+            session.expiresAt = now + graceNanos;
+            session.connection = null;
+            detached.add(new Detached(token, session, session.expiresAt));
+        }
+    }
+
+    // Drop the sessions whose grace window has ended, unless they were claimed in the meantime
+    // Drop the sessions whose grace window has ended, unless they were claimed in the meantime. One
+    // thread at a time; the others leave it to that one.
+    private void purgeExpired(long now) {
+        if (!purgeLock.tryLock()) {
+            return;
+        }
+        try {
+            Detached head;
+            while ((head = detached.peek()) != null && head.expiresAt - now <= 0) {
+                detached.poll();
+                sessions.remove(head.token, head.session);
+            }
+        } finally {
+            purgeLock.unlock();
+        }
+    }
+
+    // The client left on purpose, so its session can't be resumed
+    public void close(String token) {
+        sessions.remove(token);
+    }
+
+    // Take over a session by its token; null if there is none or it has expired. The session's
+    // connection is non-null if the server has not noticed the old connection drop yet.
+    public Session claim(String token) {
+        Session session = sessions.remove(token);
+        if (session == null) {
+            return null;
+        }
+        if (session.connection == null && session.expiresAt - System.nanoTime() <= 0) {
+            return null;
+        }
+        return session;
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cluster bus over TCP, using the binary protocol's framing. Each node listens on its own address
+// and opens one connection to every other node the first time it has something for it, introducing
+// itself with a HELLO frame. Outgoing frames wait in a bounded queue per peer, written by that
+// peer's own thread, so a slow or unreachable node never holds up the others; frames that don't fit,
+// or that were queued when a connection failed, are dropped.
+public class TcpBus implements ClusterBus {
+    // First frame on every connection: the sending node's name
+    private static final int HELLO = 0x00;
+
+    // Largest frame accepted from another node; history replies are the biggest
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // Frames that may wait for one peer before new ones are dropped
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    // Wait before reconnecting to a peer after a failure
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    // Frames dropped because a peer's queue was full, per peer
+    private static final Metrics.Family droppedFrames = Metrics.family("cluster.dropped");
+
+    private final String node;
+    private final InetSocketAddress address;
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    private volatile boolean closed;
+    private ServerSocket listener;
+
+    // addresses: every node of the cluster, including this one
+    public TcpBus(String node, Map<String, InetSocketAddress> addresses) {
+        this.node = node;
+        this.address = addresses.get(node);
+        if (address == null) {
+            throw new IllegalArgumentException("Node " + node + " is not in the cluster");
+        }
+
+        for (Map.Entry<String, InetSocketAddress> entry : addresses.entrySet()) {
+            if (!entry.getKey().equals(node)) {
+                peers.put(entry.getKey(), new Peer(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    @Override
+    public void start(Handler handler) {
+        try {
+            listener = new ServerSocket();
+            listener.bind(new InetSocketAddress(address.getPort()));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not listen for cluster nodes on port " + address.getPort(), e);
+        }
+
+        Thread acceptor = new Thread(() -> accept(handler), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (Peer peer : peers.values()) {
+            peer.start();
+        }
+    }
+
+    @Override
+    public void send(String to, byte[] frame) {
+        Peer peer = peers.get(to);
+        if (peer != null && !peer.queue.offer(frame)) {
+            peer.dropped.increment();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+    }
+
+    private void accept(Handler handler) {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = listener.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.warn("cluster.accept_failed", e);
+                }
+                return;
+            }
+
+            Thread reader = new Thread(() -> receive(socket, handler), "cluster-receive");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    // Read frames from one peer until its connection closes
+    private void receive(Socket socket, Handler handler) {
+        try (Socket connection = socket) {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            BinaryCodec.Frame hello = BinaryCodec.readFrame(in, MAX_FRAME_LENGTH);
+            if (hello == null || hello.opcode != HELLO) {
+                return;
+            }
+            String from = hello.readString();
+
+            BinaryCodec.Frame frame;
+            while ((frame = BinaryCodec.readFrame(in, MAX_FRAME_LENGTH)) != null) {
+                try {
+                    handler.onFrame(from, frame);
+                } catch (RuntimeException e) {
+                    Log.error("cluster.frame_failed", e, "from", from);
+                }
+            }
+        } catch (SocketException e) {
+            // Peer went away
+        } catch (IOException e) {
+            Log.warn("cluster.read_failed", e);
+        }
+    }
+
+    // Another node and the frames waiting for it
+    private class Peer {
+        final String name;
+        final InetSocketAddress address;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final LongAdder dropped;
+        final Thread writer;
+
+        // Only the writer thread touches these
+        Socket socket;
+        OutputStream out;
+
+        Peer(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+            this.dropped = droppedFrames.get(name);
+            this.writer = new Thread(this::write, "cluster-send-" + name);
+            this.writer.setDaemon(true);
+        }
+
+        void start() {
+            writer.start();
+        }
+
+        void close() {
+            writer.interrupt();
+            disconnect();
+        }
+
+        private void write() {
+            while (!closed) {
+                byte[] frame;
+                try {
+                    frame = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    if (out == null) {
+                        connect();
+                    }
+                    out.write(frame);
+
+                    // Write whatever else is already waiting before flushing
+                    byte[] next;
+                    while ((next = queue.poll()) != null) {
+                        out.write(next);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    Log.warn("cluster.node_lost", e, "node", name);
+                    disconnect();
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void connect() throws IOException {
+            // Resolved on every attempt, so a node that moves to a new address is found again
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                    (int) TimeUnit.SECONDS.toMillis(5));
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(new BinaryCodec.FrameBuilder(HELLO).writeString(node).toByteArray());
+        }
+
+        private void disconnect() {
+            out = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+                socket = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The original newline-delimited protocol: one line per message, with lists bracketed by
+// *_BEGIN/*_END lines. It has no room for presence versions, so text clients refresh the whole
+// user list after every join/leave notice, and no room for message ids or resume tokens, so text
+// clients always log in afresh.
+public class TextCodec implements WireCodec {
+    public static final TextCodec INSTANCE = new TextCodec();
+
+    private TextCodec() {
+    }
+
+    @Override
+    public byte[] loginResult(LoginResult result, String username, boolean anonymous) {
+        // Anonymous clients learn their generated name on the line after LOGIN_SUCCESS
+        if (anonymous && result == LoginResult.LOGIN_SUCCESS) {
+            return ClientWriter.encode(Arrays.asList(result.name(), username));
+        }
+        return ClientWriter.encode(result.name());
+    }
+
+    @Override
+    public byte[] retryAfter(int seconds) {
+        return ClientWriter.encode(Arrays.asList(LoginResult.RETRY_AFTER.name(), String.valueOf(seconds)));
+    }
+
+    @Override
+    public byte[] goingAway(int reconnectAfterSeconds) {
+        return ClientWriter.encode("Server is shutting down. Please reconnect in " + reconnectAfterSeconds
+                + " seconds.");
+    }
+
+    @Override
+    public byte[] session(String token, int graceSeconds) {
+        // Older clients would show any extra line after the login reply as a chat message
+        return null;
+    }
+
+    @Override
+    public byte[] notice(String text) {
+        return ClientWriter.encode(text);
+    }
+
+    @Override
+    public byte[] notices(List<String> lines) {
+        return ClientWriter.encode(lines);
+    }
+
+    @Override
+    public byte[] chat(Message message) {
+        return ClientWriter.encode(message.kind == Message.Kind.CHAT
+                ? message.sender + ": " + message.body
+                : message.body);
+    }
+
+    @Override
+    public byte[] presence(Presence event, String roomId, long version, String username) {
+        return ClientWriter.encode(username + event.text);
+    }
+
+    @Override
+    public byte[] joinedRoom(Room room) {
+        return ClientWriter.encode("You have joined room '" + room.getName() + "'.");
+    }
+
+    @Override
+    public byte[] roomList(List<Room> rooms) {
+        List<String> lines = new ArrayList<>(rooms.size() + 3);
+        lines.add("ROOM_LIST_BEGIN");
+        lines.add("Available rooms:");
+
+        for (Room room : rooms) {
+            String lockStatus = "public".equals(room.getAccessCode()) ? "🔓" : "🔒";
+            lines.add(room.getName() + " " + lockStatus);
+        }
+
+        lines.add("ROOM_LIST_END");
+        return ClientWriter.encode(lines);
+    }
+
+    @Override
+    public byte[] userList(String roomId, long version, int page, int pages, List<String> online,
+            List<String> offline) {
+        List<String> lines = new ArrayList<>(online.size() + offline.size() + 3);
+        lines.add("USER_LIST_BEGIN");
+
+        for (String user : online) {
+            lines.add(user + " (online)");
+        }
+        for (String user : offline) {
+            lines.add(user + " (offline)");
+        }
+
+        lines.add("USER_LIST_END");
+
+        // Outside the list so older clients show it as a message rather than a user
+        if (pages > 1) {
+            lines.add("Page " + (page + 1) + " of " + pages + " of users. Type /users <page> for another.");
+        }
+        return ClientWriter.encode(lines);
+    }
+
+    @Override
+    public byte[] history(String roomId, HistoryPage page) {
+        List<String> lines = new ArrayList<>(page.messages.size() + 2);
+        lines.add("CHAT_HISTORY_BEGIN");
+
+        if (page.messages.isEmpty()) {
+            lines.add("No previous messages in this room.");
+        } else {
+            for (Message message : page.messages) {
+                lines.add(message.toHistoryLine());
+            }
+        }
+
+        lines.add("CHAT_HISTORY_END");
+        return ClientWriter.encode(lines);
+    }
+
+    @Override
+    public byte[] olderHistory(String roomId, HistoryPage page) {
+        // Only sent in reply to /history, so older clients never see the markers unasked
+        List<String> lines = new ArrayList<>(page.messages.size() + 2);
+        lines.add("OLDER_HISTORY_BEGIN " + page.cursor);
+        for (Message message : page.messages) {
+            lines.add(message.toHistoryLine());
+        }
+        lines.add("OLDER_HISTORY_END");
+        return ClientWriter.encode(lines);
+    }
+}
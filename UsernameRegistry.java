@@ -0,0 +1,34 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Usernames of connected clients, each held by the connection that reserved it. Reserving is a
+// single putIfAbsent, so of any number of logins racing for one name exactly one wins, without a
+// lock shared by all logins. A name is released only by its owner, so a late release from a
+// rejected or stale connection can never free a name someone else now holds.
+public class UsernameRegistry {
+    private final ConcurrentHashMap<String, Object> owners = new ConcurrentHashMap<>();
+
+    // Reserve a name for owner; false if another connection already holds it
+    public boolean reserve(String username, Object owner) {
+        Object current = owners.putIfAbsent(username, owner);
+        return current == null || current == owner;
+    }
+
+    // Reserve base, or base followed by the lowest number that is free; returns the name reserved
+    public String reserveUnique(String base, Object owner) {
+        if (reserve(base, owner)) {
+            return base;
+        }
+
+        for (int counter = 1;; counter++) {
+            String candidate = base + counter;
+            if (reserve(candidate, owner)) {
+                return candidate;
+            }
+        }
+    }
+
+    // Free a name, if owner still holds it
+    public void release(String username, Object owner) {
+        owners.remove(username, owner);
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.List;
+
+// Encodes what the server tells a client into frames of one wire protocol. Codecs keep no
+// per-client state, so a frame encoded once can be queued for every client speaking that protocol.
+public interface WireCodec {
+    // Replies to the login handshake
+    enum LoginResult {
+        LOGIN_SUCCESS,
+        LOGIN_FAILED,
+        USERNAME_TAKEN,
+        REGISTER_SUCCESS,
+        REGISTER_FAILED,
+        INVALID_LOGIN_TYPE,
+        RETRY_AFTER,
+        RESUMED,
+        RESUME_FAILED
+    }
+
+    // Join/leave notices
+    enum Presence {
+        JOINED_CHAT(" has joined the chat!"),
+        LEFT_CHAT(" has left the chat!"),
+        JOINED_ROOM(" has joined the room."),
+        LEFT_ROOM(" has left the room.");
+
+        // Text shown after the username
+        final String text;
+
+        Presence(String text) {
+            this.text = text;
+        }
+    }
+
+    // Reply to the login handshake; username is the name the client ended up with, if it succeeded
+    byte[] loginResult(LoginResult result, String username, boolean anonymous);
+
+    // Turns a connection away before login, asking it to try again after the given number of seconds
+    byte[] retryAfter(int seconds);
+
+    // Tells a logged-in client the server is shutting down and how many seconds to wait before
+    // reconnecting; the connection closes after this frame
+    byte[] goingAway(int reconnectAfterSeconds);
+
+    // Gives a logged-in client the token it can resume its session with after losing the connection,
+    // valid for graceSeconds after the disconnect; null if the protocol can't resume sessions
+    byte[] session(String token, int graceSeconds);
+
+    // A message from the server itself
+    byte[] notice(String text);
+
+    // Several server messages in one frame
+    byte[] notices(List<String> lines);
+
+    // A chat message sent to a room
+    byte[] chat(Message message);
+
+    // A join or leave, carrying the room's presence version after the change
+    byte[] presence(Presence event, String roomId, long version, String username);
+
+    // Confirms that the client has moved to a room
+    byte[] joinedRoom(Room room);
+
+    byte[] roomList(List<Room> rooms);
+
+    // One page of the users in a room as of the given presence version; page counts from 0
+    byte[] userList(String roomId, long version, int page, int pages, List<String> online, List<String> offline);
+
+    // Recent messages of a room, sent on joining it
+    byte[] history(String roomId, HistoryPage page);
+
+    // Older messages of a room, asked for by the client to scroll back
+    byte[] olderHistory(String roomId, HistoryPage page);
+}
@@ -0,0 +1,24 @@
+import java.io.File;
+import java.io.IOException;
+
+// A database in a temporary file for one benchmark trial, deleted again when it is closed
+class BenchmarkDatabase {
+    final File file;
+    final DatabaseManager dbManager;
+
+    BenchmarkDatabase(String prefix, int batchSize) throws IOException {
+        file = File.createTempFile(prefix, ".db");
+        dbManager = new DatabaseManager(file.getPath(), batchSize, 50, 1);
+    }
+
+    void close() {
+        dbManager.close();
+        delete(file);
+    }
+
+    static void delete(File dbFile) {
+        for (String suffix : new String[] { "", "-wal", "-shm" }) {
+            new File(dbFile.getPath() + suffix).delete();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import bench.Fixture;
+
+// Sending one chat message, from the sender's line being processed to the frame sitting in every
+// recipient's queue, with the given number of clients connected and in the room. Clients are
+// logged in through the real handshake, half of them speaking each protocol, with queues that are
+// emptied as soon as anything is written to them. The server's state is static, so there can only
+// be one of these per JVM.
+public class BroadcastFixture implements Fixture {
+    private final File dbFile;
+    private final List<Socket> connections = new ArrayList<>();
+    private final Socket sender;
+    private int sequence;
+
+    public BroadcastFixture(int clients, int roomSize) throws IOException {
+        dbFile = File.createTempFile("broadcast-benchmark", ".db");
+        Server.start(ServerConfig.fromArgs(new String[] {
+                "--db-file=" + dbFile.getPath(),
+                "--resume-grace=0",
+                "--outbound-queue=100000" }));
+
+        for (int i = 0; i < clients; i++) {
+            connections.add(connect(i));
+        }
+
+        // The first client creates the room, which also moves it there
+        sender = connections.get(0);
+        Server.processClientMessage(sender, "/create bench");
+        for (int i = 1; i < Math.min(roomSize, clients); i++) {
+            Server.processClientMessage(connections.get(i), "/join bench");
+        }
+    }
+
+    @Override
+    public Supplier<?> operation(String name) {
+        if (!name.equals("broadcastToRoom")) {
+            throw new IllegalArgumentException(name);
+        }
+        return () -> {
+            try {
+                Server.processClientMessage(sender, "benchmark message " + sequence++);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        };
+    }
+
+    // Log in an anonymous client whose queue is emptied as soon as frames are put on it
+    private static Socket connect(int index) throws IOException {
+        Socket connection = new Socket();
+        ClientWriter writer = new ClientWriter(100_000, ClientWriter.OverflowPolicy.DROP_OLDEST);
+        writer.setTransport(new ClientWriter.Transport() {
+            @Override
+            public void writeReady() {
+                while (writer.poll() != null) {
+                    // Delivered
+                }
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+
+        WireCodec codec = index % 2 == 0 ? TextCodec.INSTANCE : BinaryCodec.INSTANCE;
+        Server.login(connection, writer, codec, new Server.LoginRequest("ANONYMOUS", null, null),
+                WireCodec.LoginResult.LOGIN_SUCCESS);
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        for (Socket connection : connections) {
+            Server.handleDisconnect(connection);
+        }
+        Server.stop();
+        BenchmarkDatabase.delete(dbFile);
+    }
+}
@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import bench.Fixture;
+
+// Queueing a run of messages on the write-behind queue and waiting until they are all committed,
+// with the queue writing batches of the given size
+public class PersistenceFixture implements Fixture {
+    private final BenchmarkDatabase database;
+    private final String roomId;
+    private final int messages;
+    private int sequence;
+
+    public PersistenceFixture(int batchSize, int messages) throws IOException {
+        this.messages = messages;
+        database = new BenchmarkDatabase("persistence-benchmark", batchSize);
+        roomId = database.dbManager.createRoom("bench", "public").getId();
+    }
+
+    @Override
+    public Supplier<?> operation(String name) {
+        if (!name.equals("queueAndFlush")) {
+            throw new IllegalArgumentException(name);
+        }
+        return () -> {
+            for (int i = 0; i < messages; i++) {
+                database.dbManager.queueMessage(roomId, "user" + (sequence % 100), "message " + sequence++);
+            }
+            return database.dbManager.flushPendingMessages();
+        };
+    }
+
+    @Override
+    public void close() {
+        database.close();
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import bench.Fixture;
+
+// A room's last 20 messages from the database and from the in-memory history, in a table of the
+// given number of messages spread over 100 rooms
+public class RecentHistoryFixture implements Fixture {
+    private static final int ROOMS = 100;
+
+    private final BenchmarkDatabase database;
+    private final RoomCatalog catalog;
+    private final MessageHistory history;
+    private final List<String> roomIds = new ArrayList<>();
+
+    public RecentHistoryFixture(int rows) throws IOException {
+        database = new BenchmarkDatabase("history-benchmark", 1000);
+        for (int i = 0; i < ROOMS; i++) {
+            roomIds.add(database.dbManager.createRoom("bench-" + i, "public").getId());
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < rows; i++) {
+            database.dbManager.queueMessage(roomIds.get(random.nextInt(ROOMS)), "user" + random.nextInt(1000),
+                    "message " + i);
+        }
+        database.dbManager.flushPendingMessages();
+
+        catalog = new RoomCatalog(database.dbManager);
+        history = new MessageHistory(database.dbManager, ROOMS);
+    }
+
+    @Override
+    public Supplier<?> operation(String name) {
+        switch (name) {
+            case "database":
+                return () -> database.dbManager.getRecentMessages(randomRoom(), 20);
+            case "warm":
+                return () -> history.recent(catalog.getById(randomRoom()), 20);
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    private String randomRoom() {
+        return roomIds.get(ThreadLocalRandom.current().nextInt(ROOMS));
+    }
+
+    @Override
+    public void close() {
+        database.close();
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import bench.Fixture;
+
+// Looking a room up by name and id in the catalog, and by name in the database for comparison
+public class RoomLookupFixture implements Fixture {
+    private final int rooms;
+    private final BenchmarkDatabase database;
+    private final RoomCatalog catalog;
+    private final List<String> names = new ArrayList<>();
+    private final List<String> ids = new ArrayList<>();
+
+    public RoomLookupFixture(int rooms) throws IOException {
+        this.rooms = rooms;
+        database = new BenchmarkDatabase("rooms-benchmark", 100);
+        for (int i = 0; i < rooms; i++) {
+            Room room = database.dbManager.createRoom("bench-" + i, "public");
+            names.add(room.getName());
+            ids.add(room.getId());
+        }
+        catalog = new RoomCatalog(database.dbManager);
+    }
+
+    @Override
+    public Supplier<?> operation(String name) {
+        switch (name) {
+            case "catalogByName":
+                return () -> catalog.getByName(names.get(ThreadLocalRandom.current().nextInt(rooms)));
+            case "catalogById":
+                return () -> catalog.getById(ids.get(ThreadLocalRandom.current().nextInt(rooms)));
+            case "databaseByName":
+                return () -> database.dbManager.getRoomByName(names.get(ThreadLocalRandom.current().nextInt(rooms)));
+            default:
+                throw new IllegalArgumentException(name);
+        }
+    }
+
+    @Override
+    public void close() {
+        database.close();
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Fanning one chat message out to a room, against the room's size and the number of clients
+// connected. The server's state is static; every trial gets a JVM of its own through its fork.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({ "1000", "4000" })
+    public int clients;
+
+    @Param({ "10", "100", "1000" })
+    public int roomSize;
+
+    private Fixture fixture;
+    private Supplier<?> broadcastToRoom;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = Fixture.create("BroadcastFixture", clients, roomSize);
+        broadcastToRoom = fixture.operation("broadcastToRoom");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object broadcastToRoom() {
+        return broadcastToRoom.get();
+    }
+}
@@ -0,0 +1,30 @@
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+// What a benchmark measures, set up in the default package where the server's classes live. JMH
+// only runs benchmarks from a named package, which cannot refer to those classes, so each
+// benchmark builds its fixture by class name and times the operations the fixture hands out.
+public interface Fixture extends AutoCloseable {
+    // The operation of this name, ready to be timed
+    Supplier<?> operation(String name);
+
+    @Override
+    void close();
+
+    // Build the fixture class of this name from the benchmark's int parameters
+    static Fixture create(String className, int... parameters) {
+        try {
+            Class<?>[] types = new Class<?>[parameters.length];
+            Arrays.fill(types, int.class);
+            Object[] arguments = Arrays.stream(parameters).boxed().toArray();
+            return (Fixture) Class.forName(className).getConstructor(types).newInstance(arguments);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Setting up " + className + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No fixture " + className, e);
+        }
+    }
+}
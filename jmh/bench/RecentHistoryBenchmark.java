@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Latency of a room's recent history from the database and from memory, against the number of
+// messages in the table; sampled, so the results include percentiles
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecentHistoryBenchmark {
+    @Param({ "10000", "100000", "1000000" })
+    public int rows;
+
+    private Fixture fixture;
+    private Supplier<?> database;
+    private Supplier<?> warm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = Fixture.create("RecentHistoryFixture", rows);
+        database = fixture.operation("database");
+        warm = fixture.operation("warm");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object database() {
+        return database.get();
+    }
+
+    @Benchmark
+    public Object warm() {
+        return warm.get();
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Room lookups in the catalog by name and id, and in the database by name, against the number of rooms
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomLookupBenchmark {
+    @Param({ "100", "1000" })
+    public int rooms;
+
+    private Fixture fixture;
+    private Supplier<?> catalogByName;
+    private Supplier<?> catalogById;
+    private Supplier<?> databaseByName;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = Fixture.create("RoomLookupFixture", rooms);
+        catalogByName = fixture.operation("catalogByName");
+        catalogById = fixture.operation("catalogById");
+        databaseByName = fixture.operation("databaseByName");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public Object catalogByName() {
+        return catalogByName.get();
+    }
+
+    @Benchmark
+    public Object catalogById() {
+        return catalogById.get();
+    }
+
+    @Benchmark
+    public Object databaseByName() {
+        return databaseByName.get();
+    }
+}